@@ -94,4 +94,55 @@ public class AUC {
         auc = (auc - (pos * (pos+1) / 2.0)) / (pos * neg);
         return auc;
     }
+
+    /**
+     * AUC of the binary predictions "a count below the threshold marks an
+     * outlier" for every threshold from 0 to maxThreshold, from one pass over
+     * the counts.
+     * Counts must be exact up to maxThreshold - 1; larger ones may be capped.
+     * The AUC of a binary prediction is (1 + TPR - FPR) / 2, and TPR and FPR
+     * at each threshold are prefix sums of the count histograms of the
+     * positive and negative samples.
+     * @param truth The sample labels, 1 for outliers.
+     * @param counts The neighbor counts.
+     * @param maxThreshold The largest threshold.
+     * @return AUC indexed by threshold.
+     */
+    public static double[] measureThresholds(int[] truth, int[] counts, int maxThreshold) {
+        if (truth.length != counts.length) {
+            throw new IllegalArgumentException(String.format("The vector sizes don't match: %d != %d.", truth.length, counts.length));
+        }
+        if (maxThreshold < 0) {
+            throw new IllegalArgumentException("Invalid max threshold: " + maxThreshold);
+        }
+
+        // histograms of the counts, those of maxThreshold or more in the last bin
+        long[] posHist = new long[maxThreshold + 1];
+        long[] negHist = new long[maxThreshold + 1];
+        double pos = 0;
+        double neg = 0;
+
+        for (int i = 0; i < truth.length; i++) {
+            int bin = Math.min(Math.max(counts[i], 0), maxThreshold);
+            if (truth[i] == 0) {
+                negHist[bin]++;
+                neg++;
+            } else if (truth[i] == 1) {
+                posHist[bin]++;
+                pos++;
+            } else {
+                throw new IllegalArgumentException("AUC is only for binary classification. Invalid label: " + truth[i]);
+            }
+        }
+
+        double[] auc = new double[maxThreshold + 1];
+        long tp = 0;
+        long fp = 0;
+        for (int threshold = 0; threshold <= maxThreshold; threshold++) {
+            auc[threshold] = 0.5 * (1 + tp / pos - fp / neg);
+            tp += posHist[threshold];
+            fp += negHist[threshold];
+        }
+        return auc;
+    }
 }
@@ -0,0 +1,69 @@
+package common;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Sizes of the CPU data caches, read from sysfs on Linux. Elsewhere, or when
+ * sysfs cannot be read, typical sizes are assumed.
+ */
+public class CacheSize {
+	/** Utility classes should not have public constructors. */
+	private CacheSize() {
+
+	}
+
+	private static final Path CACHE_DIR = Paths.get("/sys/devices/system/cpu/cpu0/cache");
+	private static final int DEFAULT_L1 = 32 << 10;
+	private static final int DEFAULT_L2 = 256 << 10;
+
+	private static final int L1 = detect(1, DEFAULT_L1);
+	private static final int L2 = detect(2, DEFAULT_L2);
+
+	/**
+	 * Size in bytes of the level 1 data cache of a core.
+	 */
+	public static int l1() {
+		return L1;
+	}
+
+	/**
+	 * Size in bytes of the level 2 cache of a core.
+	 */
+	public static int l2() {
+		return L2;
+	}
+
+	private static int detect(int level, int fallback) {
+		for (int i = 0; ; i++) {
+			Path index = CACHE_DIR.resolve("index" + i);
+			if (!Files.isDirectory(index))
+				return fallback;
+			try {
+				String type = read(index.resolve("type"));
+				if (Integer.parseInt(read(index.resolve("level"))) == level
+						&& (type.equals("Data") || type.equals("Unified")))
+					return parseSize(read(index.resolve("size")));
+			} catch (IOException | NumberFormatException e) {
+				return fallback;
+			}
+		}
+	}
+
+	private static String read(Path file) throws IOException {
+		return new String(Files.readAllBytes(file), StandardCharsets.US_ASCII).trim();
+	}
+
+	/* sysfs sizes look like "48K" or "2048K" */
+	private static int parseSize(String size) {
+		char unit = Character.toUpperCase(size.charAt(size.length() - 1));
+		if (unit == 'K')
+			return Integer.parseInt(size.substring(0, size.length() - 1)) << 10;
+		if (unit == 'M')
+			return Integer.parseInt(size.substring(0, size.length() - 1)) << 20;
+		return Integer.parseInt(size);
+	}
+}
@@ -0,0 +1,63 @@
+package common;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed-size bit set whose bits may be set from several threads at once.
+ * Bits are never cleared, and every 64-bit word doubles as a summary of a
+ * block of 64 bits, so runs of set bits are skipped a word at a time.
+ */
+public class ConcurrentBitSet {
+
+	private final int size;
+	private final AtomicLongArray words;
+
+	public ConcurrentBitSet(int size) {
+		this.size = size;
+		this.words = new AtomicLongArray((size + 63) >>> 6);
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean get(int i) {
+		return (words.get(i >>> 6) & (1L << i)) != 0;
+	}
+
+	public void set(int i) {
+		int w = i >>> 6;
+		long mask = 1L << i;
+		long word;
+		do {
+			word = words.get(w);
+			if ((word & mask) != 0)
+				return;
+		} while (!words.compareAndSet(w, word, word | mask));
+	}
+
+	/**
+	 * Returns the index of the first clear bit at or after from, or size()
+	 * if there is none.
+	 */
+	public int nextClearBit(int from) {
+		if (from >= size)
+			return size;
+
+		int w = from >>> 6;
+		long word = ~words.get(w) & (-1L << from);
+		while (word == 0) {
+			if (++w == words.length())
+				return size;
+			word = ~words.get(w);
+		}
+		return Math.min(size, (w << 6) + Long.numberOfTrailingZeros(word));
+	}
+
+	/**
+	 * Whether every bit in [from, to] is set.
+	 */
+	public boolean allSet(int from, int to) {
+		return nextClearBit(from) > to;
+	}
+}
@@ -1,5 +1,81 @@
 package common;
 
+import java.util.Arrays;
+
 public interface DistanceFunction {
 	public double compute(double[] p, double[] q);
+	
+	/**
+	 * Distance between the numDim values starting at p[pOff] and q[qOff].
+	 * By default, copies both slices and calls {@link #compute(double[], double[])};
+	 * implementations should read the arrays in place.
+	 */
+	public default double compute(double[] p, int pOff, double[] q, int qOff, int numDim) {
+		return compute(Arrays.copyOfRange(p, pOff, pOff + numDim), Arrays.copyOfRange(q, qOff, qOff + numDim));
+	}
+	
+	/**
+	 * Whether p and q are at most eps apart. Implementations may stop as soon
+	 * as the outcome is known instead of computing the full distance.
+	 */
+	public default boolean withinRange(double[] p, double[] q, double eps) {
+		return compute(p, q) <= eps;
+	}
+	
+	public default boolean withinRange(double[] p, int pOff, double[] q, int qOff, int numDim, double eps) {
+		return compute(p, pOff, q, qOff, numDim) <= eps;
+	}
+	
+	/**
+	 * Same as above, visiting the dimensions interval by interval. ranges
+	 * holds inclusive [from, to] pairs which together cover every dimension
+	 * exactly once.
+	 */
+	public default boolean withinRange(double[] p, int pOff, double[] q, int qOff, int[] ranges, double eps) {
+		int numDim = 0;
+		for (int k = 0; k < ranges.length; k += 2)
+			numDim += Math.max(0, ranges[k + 1] - ranges[k] + 1);
+		return withinRange(p, pOff, q, qOff, numDim, eps);
+	}
+	
+	/**
+	 * Increasing transform of distances in which {@link #rangeDistance} is
+	 * given, e.g. the square for the Euclidean distance, so that it can skip
+	 * the last step of the distance. The identity by default.
+	 */
+	public default double reduce(double d) {
+		return d;
+	}
+	
+	/**
+	 * reduce(distance) between p and q, visiting the dimensions like
+	 * withinRange with ranges. Implementations may stop as soon as it exceeds
+	 * reduce(eps), returning any value above it.
+	 */
+	public default double rangeDistance(double[] p, int pOff, double[] q, int qOff, int[] ranges, double eps) {
+		int numDim = 0;
+		for (int k = 0; k < ranges.length; k += 2)
+			numDim += Math.max(0, ranges[k + 1] - ranges[k] + 1);
+		return compute(p, pOff, q, qOff, numDim);
+	}
+	
+	/**
+	 * Smallest distance between a point of box 1 and a point of box 2. Each
+	 * box is given by its lower and upper corners, numDim values starting at
+	 * off1 (off2). Metrics that cannot bound it return 0.
+	 */
+	public default double minDistance(double[] lo1, double[] hi1, int off1,
+			double[] lo2, double[] hi2, int off2, int numDim) {
+		return 0;
+	}
+	
+	/**
+	 * Largest distance between a point of box 1 and a point of box 2. Each box
+	 * is given by its lower and upper corners, numDim values starting at
+	 * off1 (off2). Metrics that cannot bound it return infinity.
+	 */
+	public default double maxDistance(double[] lo1, double[] hi1, int off1,
+			double[] lo2, double[] hi2, int off2, int numDim) {
+		return Double.POSITIVE_INFINITY;
+	}
 }
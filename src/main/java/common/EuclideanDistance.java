@@ -4,7 +4,95 @@ public class EuclideanDistance implements DistanceFunction {
 
 	@Override
 	public double compute(double[] p, double[] q) {
-		return new org.apache.commons.math3.ml.distance.EuclideanDistance().compute(p, q);
+		if (p.length != q.length) {
+			throw new IllegalArgumentException(String.format("The vector sizes don't match: %d != %d.", p.length, q.length));
+		}
+		return compute(p, 0, q, 0, p.length);
+	}
+
+	@Override
+	public double compute(double[] p, int pOff, double[] q, int qOff, int numDim) {
+		double sum = 0;
+		for (int i = 0; i < numDim; i++) {
+			double dp = p[pOff + i] - q[qOff + i];
+			sum += dp * dp;
+		}
+		return Math.sqrt(sum);
+	}
+
+	@Override
+	public boolean withinRange(double[] p, double[] q, double eps) {
+		if (p.length != q.length) {
+			throw new IllegalArgumentException(String.format("The vector sizes don't match: %d != %d.", p.length, q.length));
+		}
+		return withinRange(p, 0, q, 0, p.length, eps);
+	}
+
+	/**
+	 * Compares the squared distance against eps^2 and gives up as soon as
+	 * the partial sum exceeds it.
+	 */
+	@Override
+	public boolean withinRange(double[] p, int pOff, double[] q, int qOff, int numDim, double eps) {
+		double bound = eps * eps;
+		double sum = 0;
+		for (int i = 0; i < numDim; i++) {
+			double dp = p[pOff + i] - q[qOff + i];
+			sum += dp * dp;
+			if (sum > bound)
+				return false;
+		}
+		return sum <= bound;
+	}
+
+	@Override
+	public boolean withinRange(double[] p, int pOff, double[] q, int qOff, int[] ranges, double eps) {
+		return rangeDistance(p, pOff, q, qOff, ranges, eps) <= eps * eps;
+	}
+
+	@Override
+	public double reduce(double d) {
+		return d * d;
+	}
+
+	/**
+	 * Squared distance, given up as soon as the partial sum exceeds eps^2.
+	 */
+	@Override
+	public double rangeDistance(double[] p, int pOff, double[] q, int qOff, int[] ranges, double eps) {
+		double bound = eps * eps;
+		double sum = 0;
+		for (int k = 0; k < ranges.length; k += 2) {
+			for (int i = ranges[k]; i <= ranges[k + 1]; i++) {
+				double dp = p[pOff + i] - q[qOff + i];
+				sum += dp * dp;
+				if (sum > bound)
+					return sum;
+			}
+		}
+		return sum;
+	}
+
+	@Override
+	public double minDistance(double[] lo1, double[] hi1, int off1,
+			double[] lo2, double[] hi2, int off2, int numDim) {
+		double sum = 0;
+		for (int i = 0; i < numDim; i++) {
+			double d = Math.max(0, Math.max(lo2[off2 + i] - hi1[off1 + i], lo1[off1 + i] - hi2[off2 + i]));
+			sum += d * d;
+		}
+		return Math.sqrt(sum);
+	}
+
+	@Override
+	public double maxDistance(double[] lo1, double[] hi1, int off1,
+			double[] lo2, double[] hi2, int off2, int numDim) {
+		double sum = 0;
+		for (int i = 0; i < numDim; i++) {
+			double d = Math.max(hi1[off1 + i] - lo2[off2 + i], hi2[off2 + i] - lo1[off1 + i]);
+			sum += d * d;
+		}
+		return Math.sqrt(sum);
 	}
 
 }
@@ -118,6 +118,18 @@ public class SortUtils {
         }
     }
 
+    /**
+     * Same as {@link #siftUp(double[], int)}, moving index[k] along with
+     * arr[k], e.g. the ids of the items of the heap.
+     */
+    public static void siftUp(double[] arr, int[] index, int k) {
+        while (k > 1 && arr[k/2] < arr[k]) {
+            swap(arr, k, k/2);
+            swap(index, k, k/2);
+            k = k/2;
+        }
+    }
+
     /**
      * To restore the max-heap condition when a node's priority is decreased.
      * We move down the heap, exchanging the node at position k with the larger
@@ -184,6 +196,25 @@ public class SortUtils {
         }
     }
 
+    /**
+     * Same as {@link #siftDown(double[], int, int)}, moving index[k] along
+     * with arr[k], e.g. the ids of the items of the heap.
+     */
+    public static void siftDown(double[] arr, int[] index, int k, int n) {
+        while (2*k <= n) {
+            int j = 2 * k;
+            if (j < n && arr[j] < arr[j + 1]) {
+                j++;
+            }
+            if (arr[k] >= arr[j]) {
+                break;
+            }
+            swap(arr, k, j);
+            swap(index, k, j);
+            k = j;
+        }
+    }
+
     /**
      * To restore the max-heap condition when a node's priority is decreased.
      * We move down the heap, exchanging the node at position k with the larger
@@ -6,28 +6,48 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.Arrays;
-import java.util.List;
 import java.util.Objects;
 import java.util.stream.Stream;
 
 import org.apache.commons.lang3.StringUtils;
 
 
+/**
+ * Rows are stored contiguously in a single row-major array: the values of
+ * row i are found at [i * numCols, (i + 1) * numCols) of {@link #getData()}.
+ * Ids and labels are kept in parallel primitive arrays.
+ */
 public class Table implements Cloneable {
 
 	private String name;
 	private final int numRows;
 	private final int numCols;
-	private final Instance[] instances;
+	private double[] data;
+	private int[] ids;
+	private int[] labels;
 	private boolean hasLabel;
 	private boolean isNormalized;
 	
 	public Table(int numRows, int numCols, Instance[] instances, String name, boolean hasLabel) {
+		this(numRows, numCols, new double[numRows * numCols], new int[numRows], new int[numRows], name, hasLabel);
+		for (int i = 0; i < numRows; i++) {
+			System.arraycopy(instances[i].getValues(), 0, data, i * numCols, numCols);
+			ids[i] = instances[i].getId();
+			labels[i] = instances[i].getLabel();
+		}
+	}
+	
+	public Table(int numRows, int numCols, double[] data, int[] ids, int[] labels, String name, boolean hasLabel) {
+		assert data.length == numRows * numCols;
+		assert ids.length == numRows;
+		assert labels.length == numRows;
+		
 		this.name = name;
 		this.numRows = numRows;
 		this.numCols = numCols;
-		this.instances = instances;
+		this.data = data;
+		this.ids = ids;
+		this.labels = labels;
 		this.hasLabel = true;
 		this.isNormalized = false;
 	}
@@ -54,7 +74,9 @@ public class Table implements Cloneable {
 			nDataCols -= 1;
 		}
 
-		Instance[] instances = new Instance[nRows];
+		double[] data = new double[nRows * nDataCols];
+		int[] ids = new int[nRows];
+		int[] labels = new int[nRows];
 		
 		try (BufferedReader bf = new BufferedReader(new FileReader(filename))) {
 			String line;
@@ -66,23 +88,24 @@ public class Table implements Cloneable {
 			
 			for (int i = 0; (line = bf.readLine()) != null; i++) {
 				v = line.split(sep);
-				double[] values = new double[nDataCols];
+				int off = i * nDataCols;
 
 				for (int j = 0; j < v.length; j++) {
 					if (j == labelCol) {
 						label = Integer.parseInt(v[j]);
 					} else {						
-						values[j] = Double.parseDouble(v[j]);
+						data[off + j] = Double.parseDouble(v[j]);
 					}
 				}
 				
-				instances[i] = new Instance(i, values, label);
+				ids[i] = i;
+				labels[i] = label;
 			}
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
 		
-		return new Table(nRows, nDataCols, instances, getName(filename), hasLabel);
+		return new Table(nRows, nDataCols, data, ids, labels, getName(filename), hasLabel);
 	}
 	
 	private static String getName(String filename) {
@@ -113,18 +136,17 @@ public class Table implements Cloneable {
 	public void normalize() {
 		assert numRows > 0;
 		assert numCols > 0;
-		assert Objects.nonNull(instances);
+		assert Objects.nonNull(data);
 		
 		for (int j = 0; j < numCols; j++) {
 			double minVal = Double.MAX_VALUE;
 			double maxVal = Double.MIN_VALUE;
-			for (int i = 0; i < numRows; i++) {
-				minVal = Math.min(instances[i].getAt(j), minVal);
-				maxVal = Math.max(instances[i].getAt(j), maxVal);
+			for (int off = j; off < data.length; off += numCols) {
+				minVal = Math.min(data[off], minVal);
+				maxVal = Math.max(data[off], maxVal);
 			}
-			for (int i = 0; i < numRows; i++) {
-				double value = (instances[i].getAt(j) - minVal) / (maxVal - minVal);
-				instances[i].setAt(j, value); 
+			for (int off = j; off < data.length; off += numCols) {
+				data[off] = (data[off] - minVal) / (maxVal - minVal);
 			}
 		}
 
@@ -135,28 +157,66 @@ public class Table implements Cloneable {
 		return isNormalized;
 	}
 	
+	/**
+	 * Returns a copy of row i; changes to it are not written back.
+	 */
 	public Instance getInstance(int i) {
-		return instances[i];
+		double[] values = new double[numCols];
+		System.arraycopy(data, i * numCols, values, 0, numCols);
+		return new Instance(ids[i], values, labels[i]);
 	}
 	
 	public double getAt(int i, int j) {
-		return instances[i].getAt(j);
+		return data[i * numCols + j];
 	}
 	
 	public void setAt(int i, int j, double value) {
-		instances[i].setAt(j, value);
+		data[i * numCols + j] = value;
+	}
+	
+	public int getOffset(int i) {
+		return i * numCols;
+	}
+	
+	public double[] getData() {
+		return data;
+	}
+	
+	public int getId(int i) {
+		return ids[i];
 	}
 	
-	public List<Instance> asList() {
-		return Arrays.asList(this.instances);
+	public int[] getIds() {
+		return ids;
+	}
+	
+	public int getLabel(int i) {
+		return labels[i];
 	}
 	
 	public int[] getLabels() {
+		return labels.clone();
+	}
+	
+	/**
+	 * Rearranges the rows so that row i becomes the former row order[i].
+	 */
+	public void permute(int[] order) {
+		assert order.length == numRows;
+		
+		double[] data = new double[this.data.length];
+		int[] ids = new int[numRows];
 		int[] labels = new int[numRows];
+		
 		for (int i = 0; i < numRows; i++) {
-			labels[i] = getInstance(i).getLabel();
+			System.arraycopy(this.data, order[i] * numCols, data, i * numCols, numCols);
+			ids[i] = this.ids[order[i]];
+			labels[i] = this.labels[order[i]];
 		}
-		return labels;
+		
+		this.data = data;
+		this.ids = ids;
+		this.labels = labels;
 	}
 	
 	public int getNumRows() {
@@ -177,17 +237,6 @@ public class Table implements Cloneable {
 	
 	@Override
 	public Table clone() {
-		int id, lbl;
-		double[] vals;
-		Instance[] instances = new Instance[numRows];
-		
-		for (int i = 0; i < numRows; i++) {
-			id = this.instances[i].getId();
-			vals = this.instances[i].getValues();
-			lbl = this.instances[i].getLabel();
-			instances[i] = new Instance(id, vals, lbl);
-		}
-			
-		return new Table(numRows, numCols, instances, name, hasLabel);
+		return new Table(numRows, numCols, data.clone(), ids.clone(), labels.clone(), name, hasLabel);
 	}
-}
\ No newline at end of file
+}
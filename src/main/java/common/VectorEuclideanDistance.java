@@ -0,0 +1,18 @@
+package common;
+
+/**
+ * Euclidean distance computed over many lanes at once with the Vector API.
+ * This is the Java 8 version of the class: the jar ships a second version
+ * for JDK 17 and newer (src/main/java17), which vectorizes when the
+ * jdk.incubator.vector module is loaded. Otherwise it computes the same
+ * scalar kernels as {@link EuclideanDistance}.
+ */
+public class VectorEuclideanDistance extends EuclideanDistance {
+
+	/**
+	 * Whether the distances are computed with the Vector API.
+	 */
+	public static boolean isVectorized() {
+		return false;
+	}
+}
@@ -72,7 +72,7 @@ public class Benchmark {
 	private static int[] getLabels(Table X) {
 		int[] labels = new int[X.getNumRows()];
 		for (int i = 0; i < X.getNumRows(); i++) {
-			labels[i] = X.getInstance(i).getLabel();
+			labels[i] = X.getLabel(i);
 		}
 		return labels;
 	}
@@ -82,9 +82,10 @@ public class Benchmark {
 		ODSuperEGO superEgo = new ODSuperEGO(threshold, j);
 		superEgo.range(X, radius);	
 		
+		int[] counts = superEgo.getCounts();
 		double[] predict = new double[X.getNumRows()];
 		for (int i = 0; i < predict.length; i++) {
-			predict[i] = superEgo.getResult().get(i) < threshold ? 1 : 0;
+			predict[i] = counts[i] < threshold ? 1 : 0;
 		}
 
 		return predict;
@@ -0,0 +1,152 @@
+package main;
+
+import java.util.Arrays;
+import java.util.function.IntPredicate;
+
+import common.Table;
+
+/**
+ * Minimum bounding rectangles (MBRs) of the blocks visited by the EGO join.
+ * The blocks form an implicit binary tree over the rows of a sorted table:
+ * node 1 covers every row, and a node with at least minSize rows is split at
+ * mid = from + size/2 into node 2k covering [from, mid] and node 2k+1
+ * covering [mid + 1, to]. Nodes with fewer than minSize rows are leaves.
+ * The corners of node k are stored at
+ * [k * numDim, (k + 1) * numDim) of {@link #getLower()} and
+ * {@link #getUpper()}.
+ */
+public class BlockTree {
+
+	private final int numDim;
+	private final int minSize;
+	private final int[] from;
+	private final int[] to;
+	private final double[] lower;
+	private final double[] upper;
+
+	public BlockTree(Table t, int minSize) {
+		/* mid puts both rows of a 2-row block in its left child */
+		if (minSize < 3)
+			throw new IllegalArgumentException("Invalid block size: " + minSize);
+
+		this.numDim = t.getNumCols();
+		this.minSize = minSize;
+
+		int numNodes = t.getNumRows() > 0 ? maxNode(1, 0, t.getNumRows() - 1) + 1 : 1;
+		this.from = new int[numNodes];
+		this.to = new int[numNodes];
+		this.lower = new double[numNodes * numDim];
+		this.upper = new double[numNodes * numDim];
+
+		if (t.getNumRows() > 0)
+			build(t.getData(), 1, 0, t.getNumRows() - 1);
+	}
+
+	public static int mid(int from, int to) {
+		return (int) (from + ((to - from + 1)/2.0));
+	}
+
+	private int maxNode(int node, int from, int to) {
+		if (to - from + 1 < minSize)
+			return node;
+		int mid = mid(from, to);
+		return Math.max(maxNode(2 * node, from, mid), maxNode(2 * node + 1, mid + 1, to));
+	}
+
+	private void build(double[] data, int node, int from, int to) {
+		int off = node * numDim;
+		this.from[node] = from;
+		this.to[node] = to;
+
+		if (to - from + 1 < minSize) {
+			fitLeaf(data, node, i -> true);
+			return;
+		}
+
+		int mid = mid(from, to);
+		build(data, 2 * node, from, mid);
+		build(data, 2 * node + 1, mid + 1, to);
+		fitInner(node);
+	}
+
+	private void fitLeaf(double[] data, int node, IntPredicate live) {
+		int off = node * numDim;
+		Arrays.fill(lower, off, off + numDim, Double.POSITIVE_INFINITY);
+		Arrays.fill(upper, off, off + numDim, Double.NEGATIVE_INFINITY);
+		for (int i = from[node]; i <= to[node]; i++) {
+			if (!live.test(i))
+				continue;
+			int row = i * numDim;
+			for (int j = 0; j < numDim; j++) {
+				lower[off + j] = Math.min(lower[off + j], data[row + j]);
+				upper[off + j] = Math.max(upper[off + j], data[row + j]);
+			}
+		}
+	}
+
+	private void fitInner(int node) {
+		int off = node * numDim;
+		int left = 2 * node * numDim;
+		int right = left + numDim;
+		for (int j = 0; j < numDim; j++) {
+			lower[off + j] = Math.min(lower[left + j], lower[right + j]);
+			upper[off + j] = Math.max(upper[left + j], upper[right + j]);
+		}
+	}
+
+	/**
+	 * Shrinks the rectangle of the leaf holding row, and those of its
+	 * ancestors, to the rows of the leaf for which live holds, e.g. after row
+	 * was deleted from data. A leaf without live rows gets an empty rectangle
+	 * (lower corner +infinity, upper corner -infinity), which no distance
+	 * bound puts within eps of another.
+	 */
+	public void refit(double[] data, int row, IntPredicate live) {
+		int node = 1;
+		while (!isLeaf(node))
+			node = row <= to[2 * node] ? 2 * node : 2 * node + 1;
+		fitLeaf(data, node, live);
+		for (node /= 2; node >= 1; node /= 2)
+			fitInner(node);
+	}
+
+	/**
+	 * Nodes are numbered from 1 up to, but excluding, getNumNodes(); numbers
+	 * in that range whose parent is a leaf are unused.
+	 */
+	public int getNumNodes() {
+		return from.length;
+	}
+
+	public int getMinSize() {
+		return minSize;
+	}
+
+	public int getFrom(int node) {
+		return from[node];
+	}
+
+	public int getTo(int node) {
+		return to[node];
+	}
+
+	public int getSize(int node) {
+		return to[node] - from[node] + 1;
+	}
+
+	public boolean isLeaf(int node) {
+		return getSize(node) < minSize;
+	}
+
+	public int getOffset(int node) {
+		return node * numDim;
+	}
+
+	public double[] getLower() {
+		return lower;
+	}
+
+	public double[] getUpper() {
+		return upper;
+	}
+}
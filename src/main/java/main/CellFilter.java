@@ -0,0 +1,138 @@
+package main;
+
+import java.util.Arrays;
+
+import common.Table;
+
+/**
+ * Cell-based lower bounds on neighbor counts, after Knorr and Ng. On a grid
+ * of side eps / (2 sqrt(d)), any two points of a cell are within eps / 2 of
+ * each other, and any two points of cells at most one apart in every
+ * dimension are within eps. The rows of B in the cell of a row of A and in
+ * the 3^d cells around it are thus all neighbors of that row.
+ * <p>
+ * The 3^d cells around each occupied cell are enumerated when that is cheap,
+ * otherwise the occupied cells are compared pairwise; when both would cost
+ * too much, only the cell of the row itself is counted.
+ */
+public class CellFilter {
+	/** Utility classes should not have public constructors. */
+	private CellFilter() {
+
+	}
+
+	/* cell lookups allowed per row of the tables */
+	private static final int WORK_PER_ROW = 1 << 4;
+	/* shrinks the cells so that rounding cannot put two rows in adjacent cells farther than eps */
+	private static final double SIDE_SLACK = 1 - 1e-9;
+
+	/**
+	 * Number of rows of b within eps of each row of a that the grid
+	 * guarantees, counting row j of b weights[j] times (once if weights is
+	 * null), and counting the row itself if it belongs to b.
+	 */
+	public static long[] lowerBounds(Table a, Table b, int[] weights, double eps) {
+		int numDim = a.getNumCols();
+		double side = eps / (2 * Math.sqrt(numDim)) * SIDE_SLACK;
+
+		Cells cellsB = new Cells(b, side, weights);
+		Cells cellsA = a == b ? cellsB : new Cells(a, side, null);
+
+		long[] count = new long[cellsA.numCells];
+		long maxWork = (long) WORK_PER_ROW * (a.getNumRows() + b.getNumRows());
+		double enumWork = cellsA.numCells * Math.pow(3, numDim);
+		double pairWork = (double) cellsA.numCells * cellsB.numCells;
+
+		if (enumWork <= maxWork) {
+			long[] key = new long[numDim];
+			for (int c = 0; c < cellsA.numCells; c++) {
+				final int cellA = c;
+				EGOGrid.forEachAdjacent(cellsA.coords, c * numDim, key, () -> {
+					int cell = cellsB.find(key, 0);
+					if (cell >= 0)
+						count[cellA] += cellsB.weight[cell];
+				});
+			}
+		} else if (pairWork <= maxWork) {
+			for (int c = 0; c < cellsA.numCells; c++) {
+				for (int e = 0; e < cellsB.numCells; e++) {
+					if (EGOGrid.isAdjacent(cellsA.coords, c * numDim, cellsB.coords, e * numDim, numDim))
+						count[c] += cellsB.weight[e];
+				}
+			}
+		} else {
+			for (int c = 0; c < cellsA.numCells; c++) {
+				int cell = cellsB.find(cellsA.coords, c * numDim);
+				if (cell >= 0)
+					count[c] += cellsB.weight[cell];
+			}
+		}
+
+		long[] bounds = new long[a.getNumRows()];
+		for (int i = 0; i < bounds.length; i++)
+			bounds[i] = count[cellsA.cellOf[i]];
+		return bounds;
+	}
+
+	/**
+	 * Occupied cells of a table with their total weight, in an open
+	 * addressing table at most half full.
+	 */
+	private static class Cells {
+		final int numDim;
+		final long[] coords;
+		final long[] weight;
+		final int[] cellOf;
+		final int[] slots;
+		int numCells;
+
+		Cells(Table t, double side, int[] weights) {
+			numDim = t.getNumCols();
+			int numRows = t.getNumRows();
+			double[] data = t.getData();
+
+			coords = new long[numRows * numDim];
+			weight = new long[numRows];
+			cellOf = new int[numRows];
+			slots = new int[EGOGrid.hashCapacity(numRows)];
+			Arrays.fill(slots, -1);
+
+			long[] key = new long[numDim];
+			for (int i = 0; i < numRows; i++) {
+				for (int j = 0; j < numDim; j++)
+					key[j] = (long) Math.floor(data[i * numDim + j] / side);
+				int slot = slot(key, 0);
+				if (slots[slot] < 0) {
+					slots[slot] = numCells;
+					System.arraycopy(key, 0, coords, numCells * numDim, numDim);
+					numCells++;
+				}
+				cellOf[i] = slots[slot];
+				weight[slots[slot]] += weights != null ? weights[i] : 1;
+			}
+		}
+
+		/**
+		 * Slot of the cell of the given coordinates, or of the empty slot it
+		 * would take.
+		 */
+		int slot(long[] key, int off) {
+			int slot = EGOGrid.hashCell(key, off, numDim) & (slots.length - 1);
+			while (slots[slot] >= 0 && !equals(key, off, slots[slot]))
+				slot = (slot + 1) & (slots.length - 1);
+			return slot;
+		}
+
+		int find(long[] key, int off) {
+			return slots[slot(key, off)];
+		}
+
+		private boolean equals(long[] key, int off, int cell) {
+			for (int j = 0; j < numDim; j++) {
+				if (coords[cell * numDim + j] != key[off + j])
+					return false;
+			}
+			return true;
+		}
+	}
+}
@@ -0,0 +1,124 @@
+package main;
+
+import java.util.Arrays;
+
+import common.Table;
+
+/**
+ * Collapses the rows of a table that are exact duplicates, or that fall in
+ * the same cell of a fine grid, into one weighted representative: the first
+ * such row. Row r of the table is represented by row
+ * {@link #getRepresentative(int)} of {@link #getTable()}, whose id is its
+ * row number and whose weight is the number of rows it stands for.
+ */
+public class Duplicates {
+
+	private final Table table;
+	private final int[] representative;
+	private final int[] weights;
+
+	private Duplicates(Table table, int[] representative, int[] weights) {
+		this.table = table;
+		this.representative = representative;
+		this.weights = weights;
+	}
+
+	/**
+	 * Collapses the rows of t with equal values.
+	 */
+	public static Duplicates collapse(Table t) {
+		return collapse(t, 0);
+	}
+
+	/**
+	 * Collapses the rows of t that fall in the same cell of a grid of the
+	 * given side, or with equal values if side is 0.
+	 */
+	public static Duplicates collapse(Table t, double side) {
+		if (side < 0)
+			throw new IllegalArgumentException("Invalid cell side: " + side);
+
+		int numRows = t.getNumRows();
+		int numCols = t.getNumCols();
+		double[] data = t.getData();
+
+		/* open addressing over the representatives, at most half full */
+		int capacity = EGOGrid.hashCapacity(numRows);
+		int[] slots = new int[capacity];
+		Arrays.fill(slots, -1);
+
+		int[] representative = new int[numRows];
+		int[] rows = new int[numRows];
+		int[] weights = new int[numRows];
+		int numReps = 0;
+
+		long[] key = new long[numCols];
+		for (int r = 0; r < numRows; r++) {
+			for (int j = 0; j < numCols; j++)
+				key[j] = key(data[r * numCols + j], side);
+			int slot = EGOGrid.hashCell(key, 0, numCols) & (capacity - 1);
+			while (slots[slot] >= 0 && !sameKey(data, rows[slots[slot]] * numCols, r * numCols, numCols, side))
+				slot = (slot + 1) & (capacity - 1);
+
+			if (slots[slot] < 0) {
+				slots[slot] = numReps;
+				rows[numReps++] = r;
+			}
+			representative[r] = slots[slot];
+			weights[slots[slot]]++;
+		}
+
+		double[] repData = new double[numReps * numCols];
+		int[] ids = new int[numReps];
+		int[] labels = new int[numReps];
+		for (int k = 0; k < numReps; k++) {
+			System.arraycopy(data, rows[k] * numCols, repData, k * numCols, numCols);
+			ids[k] = k;
+			labels[k] = t.getLabel(rows[k]);
+		}
+
+		Table reps = new Table(numReps, numCols, repData, ids, labels, t.getName(), t.hasLabel());
+		return new Duplicates(reps, representative, Arrays.copyOf(weights, numReps));
+	}
+
+	private static long key(double value, double side) {
+		return side > 0 ? (long) Math.floor(value / side) : Double.doubleToLongBits(value + 0.0);
+	}
+
+	private static boolean sameKey(double[] data, int off1, int off2, int numCols, double side) {
+		for (int j = 0; j < numCols; j++) {
+			if (key(data[off1 + j], side) != key(data[off2 + j], side))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Table of the representatives, with ids 0 to getNumRepresentatives() - 1.
+	 */
+	public Table getTable() {
+		return table;
+	}
+
+	public int getNumRepresentatives() {
+		return weights.length;
+	}
+
+	/**
+	 * Id of the representative of row r of the collapsed table.
+	 */
+	public int getRepresentative(int r) {
+		return representative[r];
+	}
+
+	/**
+	 * Number of rows represented by representative k.
+	 */
+	public int getWeight(int k) {
+		return weights[k];
+	}
+
+	public int[] getWeights() {
+		return weights.clone();
+	}
+}
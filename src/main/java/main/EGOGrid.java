@@ -0,0 +1,145 @@
+package main;
+
+import java.util.Arrays;
+
+import common.Table;
+
+/**
+ * Cell coordinates of the rows of a table on a grid of side eps, and the
+ * EGO order of the rows, i.e. the lexicographic order of their cells.
+ * Cells are stored row-major like the table, numCols per row.
+ */
+public class EGOGrid {
+	/** Utility classes should not have public constructors. */
+	private EGOGrid() {
+
+	}
+
+	private static final int DIGIT_BITS = 16;
+
+	public static int cellOf(double value, double eps) {
+		return (int) (value / eps);
+	}
+
+	public static int[] getCells(Table t, double eps) {
+		double[] data = t.getData();
+		int[] cells = new int[data.length];
+		for (int i = 0; i < data.length; i++)
+			cells[i] = cellOf(data[i], eps);
+		return cells;
+	}
+
+	/**
+	 * Stable LSD radix sort of the rows by their cells, one counting sort
+	 * per dimension (or per 16-bit digit of it) from the last to the first.
+	 * @return the row found at each position of the sorted order.
+	 */
+	public static int[] sort(int[] cells, int numRows, int numCols) {
+		int[] order = new int[numRows];
+		int[] buffer = new int[numRows];
+		for (int i = 0; i < numRows; i++)
+			order[i] = i;
+
+		int[] count = null;
+		for (int j = numCols - 1; j >= 0; j--) {
+			long min = Long.MAX_VALUE;
+			long max = Long.MIN_VALUE;
+			for (int i = 0; i < numRows; i++) {
+				min = Math.min(min, cells[i * numCols + j]);
+				max = Math.max(max, cells[i * numCols + j]);
+			}
+			if (min >= max)
+				continue;
+
+			long range = max - min;
+			for (int shift = 0; (range >>> shift) > 0; shift += DIGIT_BITS) {
+				int numBuckets = (int) Math.min(range >>> shift, (1 << DIGIT_BITS) - 1) + 1;
+				if (count == null || count.length < numBuckets + 1)
+					count = new int[numBuckets + 1];
+				else
+					Arrays.fill(count, 0, numBuckets + 1, 0);
+
+				for (int i = 0; i < numRows; i++)
+					count[digit(cells[order[i] * numCols + j], min, shift) + 1]++;
+				for (int k = 0; k < numBuckets; k++)
+					count[k + 1] += count[k];
+				for (int i = 0; i < numRows; i++)
+					buffer[count[digit(cells[order[i] * numCols + j], min, shift)]++] = order[i];
+
+				int[] tmp = order;
+				order = buffer;
+				buffer = tmp;
+			}
+		}
+
+		return order;
+	}
+
+	private static int digit(int cell, long min, int shift) {
+		return (int) (((cell - min) >>> shift) & ((1 << DIGIT_BITS) - 1));
+	}
+
+	/**
+	 * Capacity of an open addressing table of up to numKeys keys: a power
+	 * of two at least twice as large, so the table stays at most half full.
+	 */
+	public static int hashCapacity(int numKeys) {
+		return Integer.highestOneBit(Math.max(1, 2 * numKeys - 1)) << 1;
+	}
+
+	/**
+	 * Hash of the numCols cell coordinates at off of key, spread over the
+	 * bits of an int so that its low bits can index an open addressing table.
+	 */
+	public static int hashCell(long[] key, int off, int numCols) {
+		long h = 1;
+		for (int j = 0; j < numCols; j++)
+			h = 31 * h + key[off + j];
+		return (int) (h ^ (h >>> 32)) * 0x9E3779B9;
+	}
+
+	/**
+	 * Whether two cells are at most one apart in every dimension.
+	 */
+	public static boolean isAdjacent(long[] c1, int off1, long[] c2, int off2, int numCols) {
+		for (int j = 0; j < numCols; j++) {
+			if (Math.abs(c1[off1 + j] - c2[off2 + j]) > 1)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Calls visit for each of the 3^d cells at most one apart in every
+	 * dimension from the cell at off of center, itself included, after
+	 * writing its coordinates to cell.
+	 */
+	public static void forEachAdjacent(long[] center, int off, long[] cell, Runnable visit) {
+		int numCols = cell.length;
+		/* odometer over the offsets in {-1, 0, 1}^d */
+		int[] offset = new int[numCols];
+		Arrays.fill(offset, -1);
+		while (true) {
+			for (int j = 0; j < numCols; j++)
+				cell[j] = center[off + j] + offset[j];
+			visit.run();
+
+			int j = numCols - 1;
+			while (j >= 0 && offset[j] == 1)
+				offset[j--] = -1;
+			if (j < 0)
+				break;
+			offset[j]++;
+		}
+	}
+
+	/**
+	 * Rearranges cells the same way as {@link Table#permute(int[])}.
+	 */
+	public static int[] permute(int[] cells, int numCols, int[] order) {
+		int[] sorted = new int[cells.length];
+		for (int i = 0; i < order.length; i++)
+			System.arraycopy(cells, order[i] * numCols, sorted, i * numCols, numCols);
+		return sorted;
+	}
+}
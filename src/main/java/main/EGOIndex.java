@@ -0,0 +1,186 @@
+package main;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+import common.Table;
+
+/**
+ * Mutable reference set B for repeated non-self joins
+ * {@link ODSuperEGO#range(Table, Table, double)} at a fixed eps. The rows are
+ * kept in EGO order with the rectangles of their blocks, in a main
+ * {@link SortedRun} and a small delta run of recent inserts, which are
+ * joined in place: {@link #score(Table)} only sorts the batch.
+ * <p>
+ * A delete leaves the row in the main run with weight 0 and shrinks the
+ * rectangles of its block. An insert sorts the delta run again. Once the
+ * delta run grows past max(MIN_DELTA_ROWS, sqrt(n)) rows, or a quarter of
+ * the main run is deleted, both are merged into a new main run in one pass,
+ * so B is never sorted as a whole.
+ */
+public class EGOIndex {
+
+	/* rows of the delta run before it is merged into the main run, at least */
+	private static final int MIN_DELTA_ROWS = 1 << 10;
+	/* share of deleted rows of the main run at which it is merged */
+	private static final int MAX_DELETED_SHARE = 4;
+	private static final int INITIAL_DELTA_SIZE = 16;
+
+	private final ODSuperEGO detector;
+	private final int numDim;
+	private final double eps;
+	private final int minSize;
+
+	private SortedRun main;
+	/* row of each id in the main run */
+	private final HashMap<Integer, Integer> mainRowById;
+
+	/* rows inserted since the last merge, in insertion order ... */
+	private double[] deltaData;
+	private int[] deltaIds;
+	private int[] deltaLabels;
+	private int deltaSize;
+	private final HashMap<Integer, Integer> deltaRowById;
+	/* ... and sorted */
+	private SortedRun delta;
+
+	/**
+	 * Index whose batches are scored by detector, see {@link #score(Table)}.
+	 * The detector must not reorder dimensions; its join threshold sets the
+	 * block size of the index.
+	 */
+	public EGOIndex(ODSuperEGO detector, int numDim, double eps) {
+		if (numDim < 1)
+			throw new IllegalArgumentException("Invalid dimension: " + numDim);
+		if (!(eps > 0))
+			throw new IllegalArgumentException("Invalid eps: " + eps);
+		this.detector = detector;
+		this.numDim = numDim;
+		this.eps = eps;
+		this.minSize = detector.getMinBlockSize();
+		this.mainRowById = new HashMap<>();
+		this.deltaRowById = new HashMap<>();
+		this.main = sorted(new double[0], new int[0], new int[0], 0);
+		this.deltaData = new double[INITIAL_DELTA_SIZE * numDim];
+		this.deltaIds = new int[INITIAL_DELTA_SIZE];
+		this.deltaLabels = new int[INITIAL_DELTA_SIZE];
+		this.delta = sorted(deltaData, deltaIds, deltaLabels, 0);
+	}
+
+	/**
+	 * Inserts the rows of t, with their ids and labels.
+	 */
+	public void insert(Table t) {
+		checkNumCols(t.getNumCols());
+		double[] data = t.getData();
+		for (int i = 0; i < t.getNumRows(); i++)
+			add(t.getId(i), t.getLabel(i), data, i * numDim);
+		update();
+	}
+
+	public void insert(int id, double[] values) {
+		checkNumCols(values.length);
+		add(id, 0, values, 0);
+		update();
+	}
+
+	private void add(int id, int label, double[] data, int off) {
+		if (mainRowById.containsKey(id) || deltaRowById.containsKey(id))
+			throw new IllegalArgumentException("Duplicate id: " + id);
+		if (deltaSize == deltaIds.length) {
+			deltaData = Arrays.copyOf(deltaData, 2 * deltaData.length);
+			deltaIds = Arrays.copyOf(deltaIds, 2 * deltaIds.length);
+			deltaLabels = Arrays.copyOf(deltaLabels, 2 * deltaLabels.length);
+		}
+		System.arraycopy(data, off, deltaData, deltaSize * numDim, numDim);
+		deltaIds[deltaSize] = id;
+		deltaLabels[deltaSize] = label;
+		deltaRowById.put(id, deltaSize);
+		deltaSize++;
+	}
+
+	/**
+	 * Deletes the row with the given id.
+	 * @return whether the index held it.
+	 */
+	public boolean delete(int id) {
+		Integer row = deltaRowById.remove(id);
+		if (row != null) {
+			/* the last row takes its place */
+			deltaSize--;
+			if (row < deltaSize) {
+				System.arraycopy(deltaData, deltaSize * numDim, deltaData, row * numDim, numDim);
+				deltaIds[row] = deltaIds[deltaSize];
+				deltaLabels[row] = deltaLabels[deltaSize];
+				deltaRowById.put(deltaIds[row], row);
+			}
+			update();
+			return true;
+		}
+
+		row = mainRowById.remove(id);
+		if (row == null)
+			return false;
+		main.delete(row);
+		if (main.getNumDeleted() > main.getNumRows() / MAX_DELETED_SHARE)
+			merge();
+		return true;
+	}
+
+	/**
+	 * Sorts the delta run again, or merges it into the main run once it is
+	 * large enough.
+	 */
+	private void update() {
+		if (deltaSize > Math.max(MIN_DELTA_ROWS, (int) Math.sqrt(main.getNumLive())))
+			merge();
+		else
+			delta = sorted(deltaData, deltaIds, deltaLabels, deltaSize);
+	}
+
+	private void merge() {
+		main = SortedRun.merge(main, sorted(deltaData, deltaIds, deltaLabels, deltaSize), minSize);
+		mainRowById.clear();
+		int[] ids = main.getTable().getIds();
+		for (int i = 0; i < ids.length; i++)
+			mainRowById.put(ids[i], i);
+
+		deltaSize = 0;
+		deltaRowById.clear();
+		delta = sorted(deltaData, deltaIds, deltaLabels, 0);
+	}
+
+	private SortedRun sorted(double[] data, int[] ids, int[] labels, int numRows) {
+		Table t = new Table(numRows, numDim, Arrays.copyOf(data, numRows * numDim),
+				Arrays.copyOf(ids, numRows), Arrays.copyOf(labels, numRows), "index", true);
+		return SortedRun.sort(t, eps, minSize);
+	}
+
+	private void checkNumCols(int numCols) {
+		if (numCols != numDim)
+			throw new IllegalArgumentException(String.format("The vector sizes don't match: %d != %d.", numCols, numDim));
+	}
+
+	/**
+	 * Counts the neighbors of the rows of batch among the rows of the index,
+	 * as {@link ODSuperEGO#range(Table, Table, double)} would. The results are
+	 * read from the detector.
+	 */
+	public void score(Table batch) {
+		checkNumCols(batch.getNumCols());
+		SortedRun[] runs = deltaSize > 0 ? new SortedRun[] { main, delta } : new SortedRun[] { main };
+		detector.range(batch, runs, eps);
+	}
+
+	public int getNumRows() {
+		return main.getNumLive() + deltaSize;
+	}
+
+	public int getNumCols() {
+		return numDim;
+	}
+
+	public double getEps() {
+		return eps;
+	}
+}
@@ -0,0 +1,289 @@
+package main;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.function.Consumer;
+
+import org.javatuples.Quartet;
+import org.javatuples.Triplet;
+
+import common.DistanceFunction;
+import common.EuclideanDistance;
+import common.SortUtils;
+import common.Table;
+
+/**
+ * Compares every mode of the joins with a brute-force pass over all pairs of
+ * rows: the outliers of the range join in each of its modes, of the sweep,
+ * of the join against another table and against an {@link EGOIndex}, the
+ * k-distances of {@link ODKnnEGO} and {@link ODTopNEGO}, and the outliers of
+ * the last window of {@link ODSlidingWindow}. Prints the mismatches of each
+ * check, and exits with status 1 if there are any.
+ */
+public class ExactnessCheck {
+
+	private static final int K = 10;
+	private static final int KNN_JOIN_THRESHOLD = 32;
+	private static final int TOP_N = 10;
+	/* radii of the sweep, as multiples of the range */
+	private static final double[] SWEEP = { 0.5, 1, 2 };
+
+	private static final DistanceFunction DIST = new EuclideanDistance();
+
+	public static void main(String[] args) {
+
+		ArrayList<Table> datasets = new ArrayList<>();
+		datasets.add(Table.readCSV("datasets/parkinson.csv",   ",", 22, true));
+		datasets.add(Table.readCSV("datasets/hepatitis.csv",   ",", 20, true));
+		datasets.add(Table.readCSV("datasets/glass.csv",       ",",  9, true));
+		datasets.add(Table.readCSV("datasets/ecoli.csv",       ",",  7, true));
+		datasets.add(Table.readCSV("datasets/ionosphere.csv",  ",", 33, true));
+		datasets.add(Table.readCSV("datasets/breastw.csv",     ",",  9, true));
+		datasets.add(Table.readCSV("datasets/pima.csv",        ",",  8, true));
+		datasets.add(Table.readCSV("datasets/thyroid.csv",     ",",  6, true));
+		datasets.add(Table.readCSV("datasets/satimage-2.csv",  ",", 36, true));
+		datasets.add(Table.readCSV("datasets/mammography.csv", ",",  6, true));
+
+		ArrayList<Quartet<String, Double, Integer, Integer>> parameters = new ArrayList<>();
+		parameters.add(new Quartet<>("parkinson  ", 0.7482,    1,  10));
+		parameters.add(new Quartet<>("hepatitis  ", 0.5190,    1,  10));
+		parameters.add(new Quartet<>("glass      ", 0.0758,    4,  10));
+		parameters.add(new Quartet<>("ecoli      ", 0.1869,    7,  10));
+		parameters.add(new Quartet<>("ionosphere ", 0.6266,    2,  90));
+		parameters.add(new Quartet<>("breastw    ", 0.2346,    7,  10));
+		parameters.add(new Quartet<>("pima       ", 0.5410,   54,  10));
+		parameters.add(new Quartet<>("thyroid    ", 0.0001,    1,  10));
+		parameters.add(new Quartet<>("satimage-2 ", 0.7657,   34, 100));
+		parameters.add(new Quartet<>("mammography", 0.0130,   65, 100));
+
+		assert datasets.size() == parameters.size();
+
+		/* name, whether the dimensions are reordered, and the settings of each mode */
+		ArrayList<Triplet<String, Boolean, Consumer<ODSuperEGO>>> modes = new ArrayList<>();
+		modes.add(new Triplet<>("symmetric", false, ego -> { }));
+		modes.add(new Triplet<>("naive", false, ego -> ego.setSymmetric(false)));
+		modes.add(new Triplet<>("reorder", true, ego -> { }));
+		modes.add(new Triplet<>("parallel", false, ego -> { ego.setParallelism(4); ego.setParallelCutoff(64); }));
+		modes.add(new Triplet<>("tiles", false, ego -> ego.setTileSize(2)));
+		modes.add(new Triplet<>("gemm", false, ego -> ego.setGemmDimension(1)));
+		modes.add(new Triplet<>("collapse", false, ego -> ego.setCollapseDuplicates(true)));
+		modes.add(new Triplet<>("cellFilter", false, ego -> ego.setCellFilter(true)));
+
+		int total = 0;
+		for (int i = 0; i < datasets.size(); i++) {
+
+			Table X = datasets.get(i);
+			X.normalize();
+
+			String dataset = parameters.get(i).getValue0();
+			double r = parameters.get(i).getValue1();
+			int outThreshold = parameters.get(i).getValue2();
+			int joinThreshold = parameters.get(i).getValue3();
+
+			double[] radii = new double[SWEEP.length];
+			for (int k = 0; k < radii.length; k++)
+				radii[k] = SWEEP[k] * r;
+			long[][] counts = new long[radii.length][];
+			double[] kDistance = new double[X.getNumRows()];
+			bruteForce(X, radii, counts, kDistance);
+			long[] truth = counts[Arrays.binarySearch(SWEEP, 1)];
+
+			// range join in each mode, with a fixed and an automatic leaf size
+			for (Triplet<String, Boolean, Consumer<ODSuperEGO>> mode : modes) {
+				for (int t : new int[] { joinThreshold, ODSuperEGO.AUTO_JOIN_THRESHOLD }) {
+					ODSuperEGO ego = new ODSuperEGO(outThreshold, t, mode.getValue1(), false);
+					mode.getValue2().accept(ego);
+					ego.range(X, r);
+					String name = mode.getValue0() + (t == ODSuperEGO.AUTO_JOIN_THRESHOLD ? "/auto" : "");
+					total += report(dataset, name, mismatches(ego.getCounts(), truth, outThreshold));
+				}
+			}
+
+			// every threshold up to the max threshold
+			ODSuperEGO thresholds = new ODSuperEGO(outThreshold, joinThreshold);
+			thresholds.setMaxThreshold(2 * outThreshold);
+			thresholds.range(X, r);
+			int mismatches = 0;
+			for (int threshold = 1; threshold <= 2 * outThreshold + 1; threshold++)
+				mismatches += mismatches(thresholds.getOutliers(threshold), truth, threshold);
+			total += report(dataset, "maxThreshold", mismatches);
+
+			// sweep
+			ODSuperEGO sweep = new ODSuperEGO(outThreshold, joinThreshold);
+			int[][] sweepCounts = sweep.rangeSweep(X, radii);
+			mismatches = 0;
+			for (int k = 0; k < radii.length; k++)
+				mismatches += mismatches(sweepCounts[k], counts[k], outThreshold);
+			total += report(dataset, "sweep", mismatches);
+
+			// first half of the rows against the table, joined and indexed
+			Table half = head(X, X.getNumRows() / 2);
+			long[] halfTruth = Arrays.copyOf(truth, half.getNumRows());
+			ODSuperEGO join = new ODSuperEGO(outThreshold, joinThreshold);
+			join.range(half, X, r);
+			total += report(dataset, "nonSelf", mismatches(join.getCounts(), halfTruth, outThreshold));
+
+			ODSuperEGO scored = new ODSuperEGO(outThreshold, joinThreshold);
+			EGOIndex index = new EGOIndex(scored, X.getNumCols(), r);
+			index.insert(X);
+			for (int j = half.getNumRows(); j < X.getNumRows(); j += 2) {
+				double[] row = Arrays.copyOfRange(X.getData(), X.getOffset(j), X.getOffset(j) + X.getNumCols());
+				index.delete(X.getId(j));
+				index.insert(X.getId(j), row);
+			}
+			index.score(half);
+			total += report(dataset, "index", mismatches(scored.getCounts(), halfTruth, outThreshold));
+
+			// k-distances
+			ODKnnEGO knn = new ODKnnEGO(K, KNN_JOIN_THRESHOLD);
+			knn.knn(X);
+			mismatches = 0;
+			for (int j = 0; j < kDistance.length; j++) {
+				if (knn.getScores()[j] != kDistance[j])
+					mismatches++;
+			}
+			total += report(dataset, "knn", mismatches);
+
+			ODTopNEGO topN = new ODTopNEGO(TOP_N, K, KNN_JOIN_THRESHOLD);
+			topN.topN(X);
+			double[] sorted = kDistance.clone();
+			Arrays.sort(sorted);
+			mismatches = 0;
+			for (int j = 0; j < Math.min(TOP_N, sorted.length); j++) {
+				if (j >= topN.getScores().length || topN.getScores()[j] != sorted[sorted.length - 1 - j])
+					mismatches++;
+			}
+			total += report(dataset, "topN", mismatches);
+
+			total += report(dataset, "window", checkWindow(X, r, outThreshold));
+		}
+
+		System.out.println(String.format("mismatches=%d", total));
+		if (total > 0)
+			System.exit(1);
+	}
+
+	private static int report(String dataset, String check, int mismatches) {
+		System.out.println(String.format("dataset=%s\tcheck=%s\tmismatches=%d", dataset, check, mismatches));
+		return mismatches;
+	}
+
+	/**
+	 * Neighbor counts of every row within each radius, and k-distances.
+	 */
+	private static void bruteForce(Table X, double[] radii, long[][] counts, double[] kDistance) {
+		int numRows = X.getNumRows();
+		int numDim = X.getNumCols();
+		double[] data = X.getData();
+		for (int k = 0; k < radii.length; k++)
+			counts[k] = new long[numRows];
+
+		double[] heap = new double[K + 1];
+		for (int i = 0; i < numRows; i++) {
+			int size = 0;
+			for (int j = 0; j < numRows; j++) {
+				if (i == j)
+					continue;
+				double d = DIST.compute(data, i * numDim, data, j * numDim, numDim);
+				for (int k = 0; k < radii.length; k++) {
+					if (d <= radii[k])
+						counts[k][X.getId(i)]++;
+				}
+				if (size < K) {
+					heap[++size] = d;
+					SortUtils.siftUp(heap, size);
+				} else if (d < heap[1]) {
+					heap[1] = d;
+					SortUtils.siftDown(heap, 1, K);
+				}
+			}
+			kDistance[X.getId(i)] = size > 0 ? heap[1] : Double.POSITIVE_INFINITY;
+		}
+	}
+
+	private static int mismatches(int[] counts, long[] truth, int threshold) {
+		int mismatches = 0;
+		for (int i = 0; i < truth.length; i++) {
+			if ((counts[i] < threshold) != (truth[i] < threshold))
+				mismatches++;
+		}
+		return mismatches;
+	}
+
+	private static int mismatches(BitSet outliers, long[] truth, int threshold) {
+		int mismatches = 0;
+		for (int i = 0; i < truth.length; i++) {
+			if (outliers.get(i) != (truth[i] < threshold))
+				mismatches++;
+		}
+		return mismatches;
+	}
+
+	/**
+	 * Streams the rows through a count-based window of a quarter of them, and
+	 * compares the outliers of the last window, as reported by the events and
+	 * by the detector, with those found over its pairs.
+	 */
+	private static int checkWindow(Table X, double r, int threshold) {
+		int numRows = X.getNumRows();
+		int numDim = X.getNumCols();
+		int windowSize = Math.max(1, numRows / 4);
+		double[] data = X.getData();
+
+		ODSlidingWindow window = ODSlidingWindow.countBased(numDim, r, threshold, windowSize);
+		Set<Long> reported = new HashSet<>();
+		window.setListener((id, status) -> {
+			if (status == ODSlidingWindow.Status.OUTLIER)
+				reported.add(id);
+			else
+				reported.remove(id);
+		});
+		for (int i = 0; i < numRows; i++)
+			window.add(i, i, Arrays.copyOfRange(data, i * numDim, (i + 1) * numDim));
+
+		Set<Long> truth = new HashSet<>();
+		int first = numRows - Math.min(numRows, windowSize);
+		for (int i = first; i < numRows; i++) {
+			int count = 0;
+			for (int j = first; j < numRows; j++) {
+				if (i != j && DIST.compute(data, i * numDim, data, j * numDim, numDim) <= r)
+					count++;
+			}
+			if (count < threshold)
+				truth.add((long) i);
+		}
+
+		Set<Long> found = new HashSet<>();
+		for (long id : window.getOutliers())
+			found.add(id);
+		return difference(truth, reported) + difference(truth, found);
+	}
+
+	private static int difference(Set<Long> s1, Set<Long> s2) {
+		int n = 0;
+		for (long x : s1) {
+			if (!s2.contains(x))
+				n++;
+		}
+		for (long x : s2) {
+			if (!s1.contains(x))
+				n++;
+		}
+		return n;
+	}
+
+	/**
+	 * The first numRows rows of t.
+	 */
+	private static Table head(Table t, int numRows) {
+		int numCols = t.getNumCols();
+		return new Table(numRows, numCols,
+				Arrays.copyOf(t.getData(), numRows * numCols),
+				Arrays.copyOf(t.getIds(), numRows),
+				Arrays.copyOf(t.getLabels(), numRows),
+				t.getName(), t.hasLabel());
+	}
+}
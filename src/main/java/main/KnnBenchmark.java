@@ -0,0 +1,55 @@
+package main;
+
+import java.util.ArrayList;
+
+import org.javatuples.Pair;
+
+import common.AUC;
+import common.Table;
+
+/**
+ * AUC and runtime of the k-distance scores of {@link ODKnnEGO} and of the LOF
+ * scores of {@link ODLofEGO}, which rank the rows instead of flagging them
+ * like the range join.
+ */
+public class KnnBenchmark {
+
+	private static final int K = 10;
+	private static final int JOIN_THRESHOLD = 32;
+
+	public static void main(String[] args) {
+
+		ArrayList<Pair<String, Table>> datasets = new ArrayList<>();
+		datasets.add(new Pair<>("glass      ", Table.readCSV("datasets/glass.csv",       ",",  9, true)));
+		datasets.add(new Pair<>("ionosphere ", Table.readCSV("datasets/ionosphere.csv",  ",", 33, true)));
+		datasets.add(new Pair<>("pima       ", Table.readCSV("datasets/pima.csv",        ",",  8, true)));
+		datasets.add(new Pair<>("thyroid    ", Table.readCSV("datasets/thyroid.csv",     ",",  6, true)));
+		datasets.add(new Pair<>("satimage-2 ", Table.readCSV("datasets/satimage-2.csv",  ",", 36, true)));
+		datasets.add(new Pair<>("mammography", Table.readCSV("datasets/mammography.csv", ",",  6, true)));
+		datasets.add(new Pair<>("shuttle    ", Table.readCSV("datasets/shuttle.csv",     ",",  9, true)));
+
+		for (Pair<String, Table> dataset : datasets) {
+
+			Table X = dataset.getValue1();
+			int[] labels = X.getLabels();
+			X.normalize();
+
+			ODKnnEGO knn = new ODKnnEGO(K, JOIN_THRESHOLD);
+			long start = System.currentTimeMillis();
+			knn.knn(X);
+			long end = System.currentTimeMillis();
+			double runtime = (end - start) / 1000.0;
+			double auc = AUC.measure(labels, knn.getScores());
+
+			ODLofEGO lof = new ODLofEGO(K, JOIN_THRESHOLD);
+			start = System.currentTimeMillis();
+			lof.lof(X);
+			end = System.currentTimeMillis();
+			double lofRuntime = (end - start) / 1000.0;
+			double lofAuc = AUC.measure(labels, lof.getScores());
+
+			System.out.println(String.format("dataset=%s\tk=%d\tjoinThs=%d\tauc=%.4f\truntime=%.2f\tlofAuc=%.4f\tlofRuntime=%.2f",
+					dataset.getValue0(), K, JOIN_THRESHOLD, auc, runtime, lofAuc, lofRuntime));
+		}
+	}
+}
@@ -0,0 +1,179 @@
+package main;
+
+import java.util.Arrays;
+import java.util.function.IntPredicate;
+
+import common.DistanceFunction;
+import common.SortUtils;
+import common.Table;
+
+/**
+ * k-nearest-neighbor search over the {@link BlockTree} of a table in EGO
+ * order, shared by {@link ODKnnEGO} and {@link ODTopNEGO}.
+ * <p>
+ * Each slot keeps the k smallest distances offered to it in a max-heap,
+ * whose top bounds the k-distance of its row once it holds k of them, and
+ * optionally the rows they lead to. Row i uses slot i - base, base being
+ * given with the rows searched.
+ */
+final class KnnSearch {
+
+	final double[][] heaps;
+	final int[][] links;
+	final int[] heapSize;
+	final double[] bound;
+
+	private final int k;
+	private final double[] data;
+	private final int numDim;
+	private final BlockTree tree;
+	private final DistanceFunction dist;
+
+	/**
+	 * Search over the rows of a, which must stay in the order of tree, with
+	 * numSlots empty heaps, keeping the rows of the distances if keepLinks.
+	 */
+	KnnSearch(Table a, BlockTree tree, DistanceFunction dist, int k, int numSlots, boolean keepLinks) {
+		this.k = k;
+		this.data = a.getData();
+		this.numDim = a.getNumCols();
+		this.tree = tree;
+		this.dist = dist;
+		this.heaps = new double[numSlots][k + 1];
+		this.links = keepLinks ? new int[numSlots][k + 1] : null;
+		this.heapSize = new int[numSlots];
+		this.bound = new double[numSlots];
+		Arrays.fill(bound, Double.POSITIVE_INFINITY);
+	}
+
+	void clear(int s) {
+		heapSize[s] = 0;
+		bound[s] = Double.POSITIVE_INFINITY;
+	}
+
+	/**
+	 * k-distance of the row of slot s, or the largest distance offered to it
+	 * if fewer than k were, or infinity if none was.
+	 */
+	double score(int s) {
+		return heapSize[s] > 0 ? heaps[s][1] : Double.POSITIVE_INFINITY;
+	}
+
+	/**
+	 * Finds the k nearest neighbors of the rows of a leaf for which active
+	 * holds, walking the tree nearest blocks first and skipping the blocks
+	 * no closer than the largest bound of those rows. It stops once no row
+	 * of the leaf is active.
+	 */
+	void searchLeaf(int leaf, int base, IntPredicate active) {
+		int from = tree.getFrom(leaf);
+		int to = tree.getTo(leaf);
+
+		int[] stack = new int[64];
+		double[] gaps = new double[64];
+		int top = 0;
+		stack[top] = 1;
+		gaps[top++] = 0;
+		double leafBound = Double.POSITIVE_INFINITY;
+
+		while (top > 0) {
+			top--;
+			int node = stack[top];
+			if (gaps[top] >= leafBound)
+				continue;
+
+			if (!tree.isLeaf(node)) {
+				if (stack.length < top + 2) {
+					stack = Arrays.copyOf(stack, 2 * stack.length);
+					gaps = Arrays.copyOf(gaps, 2 * gaps.length);
+				}
+				int left = 2 * node;
+				int right = left + 1;
+				double gapLeft = minDistance(leaf, left);
+				double gapRight = minDistance(leaf, right);
+				int near = gapLeft <= gapRight ? left : right;
+				stack[top] = near == left ? right : left;
+				gaps[top++] = Math.max(gapLeft, gapRight);
+				stack[top] = near;
+				gaps[top++] = Math.min(gapLeft, gapRight);
+				continue;
+			}
+
+			int frB = tree.getFrom(node);
+			int toB = tree.getTo(node);
+			for (int i = from; i <= to; i++) {
+				int s = i - base;
+				if (!active.test(i) || (node != leaf && rowDistance(i, node) >= bound[s]))
+					continue;
+				int pOff = i * numDim;
+				for (int j = frB; j <= toB; j++) {
+					if (j == i || !dist.withinRange(data, pOff, data, j * numDim, numDim, bound[s]))
+						continue;
+					offer(s, dist.compute(data, pOff, data, j * numDim, numDim), j);
+				}
+			}
+
+			leafBound = -1;
+			for (int i = from; i <= to; i++) {
+				if (active.test(i))
+					leafBound = Math.max(leafBound, bound[i - base]);
+			}
+			if (leafBound < 0)
+				return;
+		}
+	}
+
+	/**
+	 * Adds distance d to row j to the heap of slot s if it is among the k
+	 * smallest.
+	 */
+	void offer(int s, double d, int j) {
+		if (d >= bound[s])
+			return;
+		double[] heap = heaps[s];
+		if (links == null) {
+			if (heapSize[s] < k) {
+				heap[++heapSize[s]] = d;
+				SortUtils.siftUp(heap, heapSize[s]);
+			} else {
+				heap[1] = d;
+				SortUtils.siftDown(heap, 1, k);
+			}
+		} else {
+			int[] link = links[s];
+			if (heapSize[s] < k) {
+				heap[++heapSize[s]] = d;
+				link[heapSize[s]] = j;
+				SortUtils.siftUp(heap, link, heapSize[s]);
+			} else {
+				heap[1] = d;
+				link[1] = j;
+				SortUtils.siftDown(heap, link, 1, k);
+			}
+		}
+		if (heapSize[s] == k)
+			bound[s] = heap[1];
+	}
+
+	double minDistance(int nodeA, int nodeB) {
+		return dist.minDistance(
+				tree.getLower(), tree.getUpper(), tree.getOffset(nodeA),
+				tree.getLower(), tree.getUpper(), tree.getOffset(nodeB),
+				numDim);
+	}
+
+	double maxDistance(int nodeA, int nodeB) {
+		return dist.maxDistance(
+				tree.getLower(), tree.getUpper(), tree.getOffset(nodeA),
+				tree.getLower(), tree.getUpper(), tree.getOffset(nodeB),
+				numDim);
+	}
+
+	/**
+	 * Distance from row i to the rectangle of node.
+	 */
+	double rowDistance(int i, int node) {
+		return dist.minDistance(data, data, i * numDim,
+				tree.getLower(), tree.getUpper(), tree.getOffset(node), numDim);
+	}
+}
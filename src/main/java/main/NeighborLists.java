@@ -0,0 +1,54 @@
+package main;
+
+/**
+ * Neighbor lists of the rows of a table in compressed sparse row (CSR) form:
+ * the neighbors of row id i, nearest first, are found at
+ * [getFrom(i), getTo(i)) of {@link #getNeighbors()}, with their distances at
+ * the same positions of {@link #getDistances()}.
+ */
+public class NeighborLists {
+
+	private final int[] offsets;
+	private final int[] neighbors;
+	private final double[] distances;
+
+	public NeighborLists(int[] offsets, int[] neighbors, double[] distances) {
+		assert offsets.length > 0 && offsets[offsets.length - 1] == neighbors.length;
+		assert neighbors.length == distances.length;
+
+		this.offsets = offsets;
+		this.neighbors = neighbors;
+		this.distances = distances;
+	}
+
+	public int getNumRows() {
+		return offsets.length - 1;
+	}
+
+	public int getFrom(int i) {
+		return offsets[i];
+	}
+
+	public int getTo(int i) {
+		return offsets[i + 1];
+	}
+
+	public int getSize(int i) {
+		return offsets[i + 1] - offsets[i];
+	}
+
+	public int[] getOffsets() {
+		return offsets;
+	}
+
+	/**
+	 * Ids of the neighbors.
+	 */
+	public int[] getNeighbors() {
+		return neighbors;
+	}
+
+	public double[] getDistances() {
+		return distances;
+	}
+}
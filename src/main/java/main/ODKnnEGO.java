@@ -0,0 +1,380 @@
+package main;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import common.DistanceFunction;
+import common.EuclideanDistance;
+import common.SortUtils;
+import common.Table;
+
+/**
+ * k-nearest-neighbor self-join on the EGO order of the rows, which scores
+ * each row by its distance to its k-th nearest neighbor (the k-distance):
+ * the larger the score, the more likely the row is an outlier.
+ * <p>
+ * Every row keeps the k smallest distances found so far in a max-heap, whose
+ * top bounds its k-distance. The join walks pairs of blocks of the
+ * {@link BlockTree}, nearest pairs first, and skips a pair when the distance
+ * between their bounding rectangles is no less than the bound of every row
+ * of both blocks. Pairs of leaves are joined row by row.
+ */
+public class ODKnnEGO {
+
+	/* rows sampled to estimate the k-distance, which sets the EGO grid */
+	private static final int SAMPLE_SIZE = 1 << 10;
+	private static final int SAMPLE_QUERIES = 1 << 6;
+
+	private final int k;
+	private final int t;
+	private final DistanceFunction dist;
+	private final Random rand;
+
+	private Table a;
+	private int numDim;
+	private BlockTree tree;
+	/* heaps and k-distance bound of each row */
+	private KnnSearch search;
+	/* largest k-distance bound of each block */
+	private double[] nodeBound;
+	/* rows of a leaf that can gain from the other leaf of a pair */
+	private int[] needy;
+
+	private boolean keepNeighbors;
+	private int parallelism;
+	private double[] result;
+	private NeighborLists neighbors;
+
+	public ODKnnEGO(int k, int joinThreshold) {
+		this(k, joinThreshold, new EuclideanDistance());
+	}
+
+	/**
+	 * Blocks with fewer than joinThreshold rows are joined pair by pair; as
+	 * the blocks of two rows are not split, it must be at least 3.
+	 */
+	public ODKnnEGO(int k, int joinThreshold, DistanceFunction fn) {
+		if (k < 1)
+			throw new IllegalArgumentException("Invalid k: " + k);
+		if (joinThreshold < 3)
+			throw new IllegalArgumentException("Invalid join threshold: " + joinThreshold);
+		this.k = k;
+		this.t = joinThreshold;
+		this.dist = fn;
+		this.rand = new Random();
+		this.result = new double[0];
+		this.parallelism = 1;
+	}
+
+	/**
+	 * Whether the join also keeps the k nearest neighbors of every row, see
+	 * {@link #getNeighbors()}.
+	 */
+	public void setKeepNeighbors(boolean keepNeighbors) {
+		this.keepNeighbors = keepNeighbors;
+	}
+
+	/**
+	 * Number of threads used by the join; 1 (the default) runs sequentially.
+	 * The parallel join searches the neighbors of each leaf on its own, so it
+	 * computes every distance from both sides.
+	 */
+	public void setParallelism(int parallelism) {
+		if (parallelism < 1)
+			throw new IllegalArgumentException("Invalid parallelism: " + parallelism);
+		this.parallelism = parallelism;
+	}
+
+	/**
+	 * Computes the k-distance of every row of a, whose ids must be 0 to
+	 * a.getNumRows() - 1, see {@link #getScores()}.
+	 */
+	public void knn(Table a) {
+		this.a = a.clone();
+		numDim = a.getNumCols();
+		int numRows = a.getNumRows();
+
+		if (numRows > 0)
+			EGOSort(this.a, gridSide(this.a, k, dist, rand));
+		tree = new BlockTree(this.a, t);
+		search = new KnnSearch(this.a, tree, dist, k, numRows, keepNeighbors);
+
+		if (numRows > 0) {
+			needy = new int[t];
+			nodeBound = new double[tree.getNumNodes()];
+			Arrays.fill(nodeBound, Double.POSITIVE_INFINITY);
+			if (parallelism > 1)
+				ParallelKnnJoin();
+			else
+				KnnJoin();
+		}
+
+		result = new double[numRows];
+		for (int i = 0; i < numRows; i++)
+			result[this.a.getId(i)] = search.score(i);
+		neighbors = keepNeighbors ? toNeighborLists() : null;
+
+		search = null;
+		nodeBound = null;
+		tree = null;
+	}
+
+	/**
+	 * Side of the EGO grid: an estimate of the k-distance of the rows of a,
+	 * from the distances of a few rows to a random sample, scaled to the size
+	 * of the table.
+	 */
+	static double gridSide(Table a, int k, DistanceFunction dist, Random rand) {
+		int numRows = a.getNumRows();
+		int numDim = a.getNumCols();
+		int m = Math.min(numRows, SAMPLE_SIZE);
+		int kk = Math.min(m - 1, Math.max(1, (int) Math.round((double) k * m / numRows)));
+		if (kk < 1)
+			return 1;
+
+		double[] data = a.getData();
+		int[] sample = new int[m];
+		for (int i = 0; i < m; i++)
+			sample[i] = m == numRows ? i : rand.nextInt(numRows);
+
+		double[] d = new double[m];
+		double sum = 0;
+		int queries = Math.min(m, SAMPLE_QUERIES);
+		for (int q = 0; q < queries; q++) {
+			int p = sample[q];
+			for (int i = 0; i < m; i++)
+				d[i] = dist.compute(data, p * numDim, data, sample[i] * numDim, numDim);
+			d[q] = Double.POSITIVE_INFINITY;
+			Arrays.sort(d);
+			sum += d[kk - 1];
+		}
+
+		double side = sum / queries * Math.pow((double) m / numRows, 1.0 / numDim);
+		return side > 0 && !Double.isInfinite(side) ? side : 1;
+	}
+
+	static void EGOSort(Table t, double side) {
+		int[] cells = EGOGrid.getCells(t, side);
+		t.permute(EGOGrid.sort(cells, t.getNumRows(), t.getNumCols()));
+	}
+
+	/**
+	 * Walks the block pairs depth first with an explicit stack of (nodeA,
+	 * nodeB) pairs, nodeA covering rows before those of nodeB or the same
+	 * rows. A block is joined with itself, then its halves with themselves,
+	 * then with each other; the children of other pairs are visited nearest
+	 * first, so the bounds are tight before distant pairs are checked.
+	 */
+	private void KnnJoin() {
+		int[] stack = new int[64];
+		int top = 0;
+		stack[top++] = 1;
+		stack[top++] = 1;
+
+		int[] pairs = new int[8];
+		double[] gaps = new double[4];
+
+		while (top > 0) {
+			int nodeB = stack[--top];
+			int nodeA = stack[--top];
+
+			if (stack.length < top + 8)
+				stack = Arrays.copyOf(stack, 2 * stack.length);
+
+			if (nodeA == nodeB) {
+				if (tree.isLeaf(nodeA)) {
+					LeafJoin(nodeA, nodeA);
+					continue;
+				}
+				int left = 2 * nodeA;
+				int right = left + 1;
+				stack[top++] = left;
+				stack[top++] = right;
+				stack[top++] = right;
+				stack[top++] = right;
+				stack[top++] = left;
+				stack[top++] = left;
+				continue;
+			}
+
+			double gap = search.minDistance(nodeA, nodeB);
+			if (gap >= Math.max(nodeBound[nodeA], nodeBound[nodeB]))
+				continue;
+
+			boolean leafA = tree.isLeaf(nodeA);
+			boolean leafB = tree.isLeaf(nodeB);
+			if (leafA && leafB) {
+				LeafJoin(nodeA, nodeB);
+				continue;
+			}
+
+			int numPairs = 0;
+			for (int x = 0; x < (leafA ? 1 : 2); x++) {
+				for (int y = 0; y < (leafB ? 1 : 2); y++) {
+					int childA = leafA ? nodeA : 2 * nodeA + x;
+					int childB = leafB ? nodeB : 2 * nodeB + y;
+					pairs[2 * numPairs] = childA;
+					pairs[2 * numPairs + 1] = childB;
+					gaps[numPairs++] = search.minDistance(childA, childB);
+				}
+			}
+
+			/* push the farthest pair first so that the nearest is popped first */
+			for (int x = 1; x < numPairs; x++) {
+				for (int y = x; y > 0 && gaps[y - 1] < gaps[y]; y--) {
+					SortUtils.swap(gaps, y - 1, y);
+					SortUtils.swap(pairs, 2 * y - 2, 2 * y);
+					SortUtils.swap(pairs, 2 * y - 1, 2 * y + 1);
+				}
+			}
+			for (int x = 0; x < numPairs; x++) {
+				stack[top++] = pairs[2 * x];
+				stack[top++] = pairs[2 * x + 1];
+			}
+		}
+	}
+
+	/**
+	 * Searches the neighbors of the rows of each leaf on its own, leaves being
+	 * spread over the workers of the shared {@link ParallelPool}. Only the
+	 * heaps of the leaf searched are updated, so the workers share no state.
+	 */
+	private void ParallelKnnJoin() {
+		int[] leaves = new int[tree.getNumNodes()];
+		int numLeaves = 0;
+		int[] stack = new int[64];
+		int top = 0;
+		stack[top++] = 1;
+		while (top > 0) {
+			int node = stack[--top];
+			if (tree.isLeaf(node)) {
+				leaves[numLeaves++] = node;
+				continue;
+			}
+			if (stack.length < top + 2)
+				stack = Arrays.copyOf(stack, 2 * stack.length);
+			stack[top++] = 2 * node + 1;
+			stack[top++] = 2 * node;
+		}
+		final int[] leafNodes = leaves;
+		ParallelPool.forEach(parallelism, numLeaves, 1, x -> search.searchLeaf(leafNodes[x], 0, i -> true));
+	}
+
+	/**
+	 * Offers the distance of every pair of rows of the leaves to the heaps of
+	 * both rows, then updates the bounds of the leaves and their ancestors.
+	 * Outside the diagonal, a row whose distance to the rectangle of the
+	 * other leaf is no less than its bound cannot gain from it, so its
+	 * pairs are only computed for the rows of the other leaf that can.
+	 */
+	private void LeafJoin(int nodeA, int nodeB) {
+		double[] data = a.getData();
+		int frA = tree.getFrom(nodeA);
+		int toA = tree.getTo(nodeA);
+		int frB = tree.getFrom(nodeB);
+		int toB = tree.getTo(nodeB);
+		boolean diagonal = nodeA == nodeB;
+		double[] bound = search.bound;
+
+		int numNeedy = 0;
+		if (!diagonal) {
+			for (int j = frB; j <= toB; j++) {
+				if (search.rowDistance(j, nodeA) < bound[j])
+					needy[numNeedy++] = j;
+			}
+		}
+
+		for (int i = frA; i <= toA; i++) {
+			if (diagonal || search.rowDistance(i, nodeB) < bound[i]) {
+				for (int j = diagonal ? i + 1 : frB; j <= toB; j++)
+					join(data, i, j);
+			} else {
+				for (int x = 0; x < numNeedy; x++)
+					join(data, i, needy[x]);
+			}
+		}
+
+		updateBound(nodeA);
+		if (!diagonal)
+			updateBound(nodeB);
+	}
+
+	private void join(double[] data, int i, int j) {
+		double limit = Math.max(search.bound[i], search.bound[j]);
+		if (!dist.withinRange(data, i * numDim, data, j * numDim, numDim, limit))
+			return;
+		double d = dist.compute(data, i * numDim, data, j * numDim, numDim);
+		search.offer(i, d, j);
+		search.offer(j, d, i);
+	}
+
+	private void updateBound(int leaf) {
+		double max = 0;
+		for (int i = tree.getFrom(leaf); i <= tree.getTo(leaf); i++)
+			max = Math.max(max, search.bound[i]);
+		nodeBound[leaf] = max;
+
+		for (int node = leaf / 2; node >= 1; node /= 2) {
+			double b = Math.max(nodeBound[2 * node], nodeBound[2 * node + 1]);
+			if (b == nodeBound[node])
+				break;
+			nodeBound[node] = b;
+		}
+	}
+
+	/**
+	 * Empties the heaps into neighbor lists ordered by row id, nearest
+	 * neighbor first.
+	 */
+	private NeighborLists toNeighborLists() {
+		int numRows = a.getNumRows();
+		int[] offsets = new int[numRows + 1];
+		for (int i = 0; i < numRows; i++)
+			offsets[a.getId(i) + 1] = search.heapSize[i];
+		for (int i = 0; i < numRows; i++)
+			offsets[i + 1] += offsets[i];
+
+		int[] ids = new int[offsets[numRows]];
+		double[] distances = new double[offsets[numRows]];
+		for (int i = 0; i < numRows; i++) {
+			double[] heap = search.heaps[i];
+			int[] link = search.links[i];
+			int off = offsets[a.getId(i)];
+			/* pop the farthest neighbor to the end of the list */
+			for (int size = search.heapSize[i]; size > 0; size--) {
+				distances[off + size - 1] = heap[1];
+				ids[off + size - 1] = a.getId(link[1]);
+				heap[1] = heap[size];
+				link[1] = link[size];
+				SortUtils.siftDown(heap, link, 1, size - 1);
+			}
+		}
+		return new NeighborLists(offsets, ids, distances);
+	}
+
+	public void reset() {
+		result = new double[0];
+		neighbors = null;
+	}
+
+	/**
+	 * k-distance of each row id, the distance to its k-th nearest other row.
+	 * Rows with fewer than k other rows get the distance to the farthest one,
+	 * or infinity if there is none.
+	 */
+	public double[] getScores() {
+		return result;
+	}
+
+	/**
+	 * k nearest neighbors of each row id, if kept, see
+	 * {@link #setKeepNeighbors(boolean)}; null otherwise.
+	 */
+	public NeighborLists getNeighbors() {
+		return neighbors;
+	}
+
+	public int getK() {
+		return k;
+	}
+}
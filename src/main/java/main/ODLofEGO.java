@@ -0,0 +1,167 @@
+package main;
+
+import java.util.function.IntConsumer;
+
+import common.DistanceFunction;
+import common.EuclideanDistance;
+import common.Table;
+
+/**
+ * Local Outlier Factor (LOF) of every row of a table, in three stages over
+ * primitive arrays:
+ * <ol>
+ * <li>the k nearest neighbors of each row, from the EGO-based kNN join of
+ * {@link ODKnnEGO}, kept in CSR form ({@link NeighborLists});</li>
+ * <li>the reachability distance of each row to each of its neighbors o,
+ * max(k-distance(o), d), aligned with the neighbor lists;</li>
+ * <li>the local reachability density (LRD) of each row, the inverse of its
+ * mean reachability distance, and its LOF, the mean LRD of its neighbors
+ * over its own.</li>
+ * </ol>
+ * Each stage runs in parallel over blocks of rows. Neighborhoods hold exactly
+ * k rows, ties at the k-distance being broken arbitrarily. Like
+ * scikit-learn, a small constant is added to the mean reachability distance
+ * so that duplicate rows get a finite density.
+ */
+public class ODLofEGO {
+
+	/* added to mean reachability distances, for rows with k duplicates */
+	private static final double MIN_REACH = 1e-10;
+	/* rows handled by a task of the parallel stages */
+	private static final int BLOCK_ROWS = 1 << 12;
+
+	private final int k;
+	private final int t;
+	private final DistanceFunction dist;
+	private int parallelism;
+
+	private NeighborLists neighbors;
+	private double[] kDistance;
+	private double[] lrd;
+	private double[] result;
+
+	public ODLofEGO(int k, int joinThreshold) {
+		this(k, joinThreshold, new EuclideanDistance());
+	}
+
+	/**
+	 * See {@link ODKnnEGO#ODKnnEGO(int, int, DistanceFunction)}.
+	 */
+	public ODLofEGO(int k, int joinThreshold, DistanceFunction fn) {
+		if (k < 1)
+			throw new IllegalArgumentException("Invalid k: " + k);
+		this.k = k;
+		this.t = joinThreshold;
+		this.dist = fn;
+		this.parallelism = 1;
+		this.result = new double[0];
+	}
+
+	/**
+	 * Number of threads used by every stage; 1 (the default) runs
+	 * sequentially.
+	 */
+	public void setParallelism(int parallelism) {
+		if (parallelism < 1)
+			throw new IllegalArgumentException("Invalid parallelism: " + parallelism);
+		this.parallelism = parallelism;
+	}
+
+	/**
+	 * Computes the LOF of every row of a, whose ids must be 0 to
+	 * a.getNumRows() - 1, see {@link #getScores()}.
+	 */
+	public void lof(Table a) {
+		int numRows = a.getNumRows();
+
+		// kNN join
+		ODKnnEGO knn = new ODKnnEGO(k, t, dist);
+		knn.setKeepNeighbors(true);
+		knn.setParallelism(parallelism);
+		knn.knn(a);
+		neighbors = knn.getNeighbors();
+		kDistance = knn.getScores();
+
+		// reachability distances
+		int[] ids = neighbors.getNeighbors();
+		double[] distances = neighbors.getDistances();
+		double[] reach = new double[ids.length];
+		forEachRow(numRows, p -> {
+			for (int e = neighbors.getFrom(p); e < neighbors.getTo(p); e++)
+				reach[e] = Math.max(kDistance[ids[e]], distances[e]);
+		});
+
+		// local reachability densities
+		lrd = new double[numRows];
+		forEachRow(numRows, p -> {
+			double sum = 0;
+			for (int e = neighbors.getFrom(p); e < neighbors.getTo(p); e++)
+				sum += reach[e];
+			int size = neighbors.getSize(p);
+			lrd[p] = size > 0 ? 1 / (sum / size + MIN_REACH) : Double.NaN;
+		});
+
+		// local outlier factors
+		result = new double[numRows];
+		forEachRow(numRows, p -> {
+			double sum = 0;
+			for (int e = neighbors.getFrom(p); e < neighbors.getTo(p); e++)
+				sum += lrd[ids[e]];
+			int size = neighbors.getSize(p);
+			result[p] = size > 0 ? sum / size / lrd[p] : 1;
+		});
+	}
+
+	/**
+	 * Runs body for every row, on blocks of BLOCK_ROWS rows spread over the
+	 * workers of the shared {@link ParallelPool}.
+	 */
+	private void forEachRow(int numRows, IntConsumer body) {
+		if (parallelism == 1 || numRows <= BLOCK_ROWS) {
+			for (int i = 0; i < numRows; i++)
+				body.accept(i);
+			return;
+		}
+		ParallelPool.forEach(parallelism, numRows, BLOCK_ROWS, body);
+	}
+
+	public void reset() {
+		result = new double[0];
+		neighbors = null;
+		kDistance = null;
+		lrd = null;
+	}
+
+	/**
+	 * LOF of each row id: about 1 inside a cluster, larger for rows less
+	 * dense than their neighbors.
+	 */
+	public double[] getScores() {
+		return result;
+	}
+
+	/**
+	 * k nearest neighbors of each row id found by the kNN join.
+	 */
+	public NeighborLists getNeighbors() {
+		return neighbors;
+	}
+
+	/**
+	 * k-distance of each row id.
+	 */
+	public double[] getKDistances() {
+		return kDistance;
+	}
+
+	/**
+	 * Local reachability density of each row id.
+	 */
+	public double[] getDensities() {
+		return lrd;
+	}
+
+	public int getK() {
+		return k;
+	}
+}
@@ -0,0 +1,465 @@
+package main;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import common.DistanceFunction;
+import common.EuclideanDistance;
+
+/**
+ * Distance-based outlier detection over a sliding window of a stream: a point
+ * of the window is an outlier if fewer than outlierThreshold other points of
+ * the window are within eps of it. The window holds the last windowSize
+ * points, or the points of the last duration time units.
+ * <p>
+ * Points are indexed by their cell on a grid of side eps, so the neighbors of
+ * an arrival are found in the 3^d cells around its own. Points expire in
+ * arrival order, so the neighbors that arrive after a point (its succeeding
+ * neighbors) stay as long as it does: a point with outlierThreshold of them
+ * is an inlier until it expires. Every other point keeps the arrival numbers
+ * of its last outlierThreshold preceding neighbors, which tell when its
+ * count may drop below the threshold; inliers are checked again at that
+ * time through a queue ordered by it. Each arrival thus costs one range
+ * query plus the checks due, without joining the window again.
+ * <p>
+ * Changes of status are reported to a {@link Listener}.
+ */
+public class ODSlidingWindow {
+
+	public enum Status {
+		/** The point arrived as an outlier, or lost neighbors and became one. */
+		OUTLIER,
+		/** The point was an outlier and gained neighbors. */
+		INLIER,
+		/** The point left the window while it was an outlier. */
+		EXPIRED
+	}
+
+	public interface Listener {
+		void statusChanged(long id, Status status);
+	}
+
+	private static final int INITIAL_CAPACITY = 1 << 10;
+	/* marks points that need no check: outliers and safe inliers */
+	private static final long NO_CHECK = -1;
+
+	private final int numDim;
+	private final double eps;
+	private final int outlierThreshold;
+	private final int windowSize;
+	private final long duration;
+	private final DistanceFunction dist;
+	private Listener listener;
+
+	/* points of the window, the point of arrival number s at slot s & mask */
+	private int mask;
+	private double[] values;
+	private long[] ids;
+	private long[] times;
+	private int[] succeeding;
+	/* last outlierThreshold preceding neighbors of each point, oldest first */
+	private long[] preceding;
+	private int[] numPreceding;
+	private long[] checkSeq;
+	private boolean[] outlier;
+	private long nextSeq;
+	private long oldestSeq;
+	private int numOutliers;
+
+	/* points of each occupied cell, in arrival order */
+	private final HashMap<Cell, Bucket> cells;
+	private final Cell probe;
+	private long[] found;
+	private int numFound;
+
+	/* inliers to check again, by the arrival number whose expiry may change them */
+	private final CheckQueue queue;
+
+	private ODSlidingWindow(int numDim, double eps, int outlierThreshold, int windowSize, long duration,
+			DistanceFunction fn) {
+		if (numDim < 1)
+			throw new IllegalArgumentException("Invalid dimension: " + numDim);
+		if (!(eps > 0))
+			throw new IllegalArgumentException("Invalid eps: " + eps);
+		if (outlierThreshold < 0)
+			throw new IllegalArgumentException("Invalid outlier threshold: " + outlierThreshold);
+		this.numDim = numDim;
+		this.eps = eps;
+		this.outlierThreshold = outlierThreshold;
+		this.windowSize = windowSize;
+		this.duration = duration;
+		this.dist = fn;
+		this.cells = new HashMap<>();
+		this.probe = new Cell(new long[numDim]);
+		this.found = new long[INITIAL_CAPACITY];
+		this.queue = new CheckQueue();
+		allocate(windowSize > 0 ? Integer.highestOneBit(Math.max(1, windowSize - 1)) << 1 : INITIAL_CAPACITY);
+	}
+
+	/**
+	 * Detector over the last windowSize points.
+	 */
+	public static ODSlidingWindow countBased(int numDim, double eps, int outlierThreshold, int windowSize) {
+		return countBased(numDim, eps, outlierThreshold, windowSize, new EuclideanDistance());
+	}
+
+	public static ODSlidingWindow countBased(int numDim, double eps, int outlierThreshold, int windowSize,
+			DistanceFunction fn) {
+		if (windowSize < 1)
+			throw new IllegalArgumentException("Invalid window size: " + windowSize);
+		return new ODSlidingWindow(numDim, eps, outlierThreshold, windowSize, 0, fn);
+	}
+
+	/**
+	 * Detector over the points that arrived less than duration time units
+	 * before the last one.
+	 */
+	public static ODSlidingWindow timeBased(int numDim, double eps, int outlierThreshold, long duration) {
+		return timeBased(numDim, eps, outlierThreshold, duration, new EuclideanDistance());
+	}
+
+	public static ODSlidingWindow timeBased(int numDim, double eps, int outlierThreshold, long duration,
+			DistanceFunction fn) {
+		if (duration < 1)
+			throw new IllegalArgumentException("Invalid duration: " + duration);
+		return new ODSlidingWindow(numDim, eps, outlierThreshold, 0, duration, fn);
+	}
+
+	public void setListener(Listener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * Adds a point to the window, after expiring the points that leave it.
+	 * Times must not decrease; count-based windows ignore them.
+	 */
+	public void add(long id, long time, double[] point) {
+		if (point.length != numDim)
+			throw new IllegalArgumentException(String.format("The vector sizes don't match: %d != %d.", point.length, numDim));
+		if (nextSeq > oldestSeq && time < times[slot(nextSeq - 1)])
+			throw new IllegalArgumentException("Times must not decrease: " + time);
+
+		if (windowSize > 0) {
+			if (nextSeq - oldestSeq >= windowSize)
+				expire(nextSeq - windowSize + 1);
+		} else {
+			long first = oldestSeq;
+			while (first < nextSeq && times[slot(first)] <= time - duration)
+				first++;
+			expire(first);
+		}
+
+		if (nextSeq - oldestSeq > mask)
+			grow();
+		long seq = nextSeq++;
+		int slot = slot(seq);
+		System.arraycopy(point, 0, values, slot * numDim, numDim);
+		ids[slot] = id;
+		times[slot] = time;
+		succeeding[slot] = 0;
+
+		rangeQuery(slot);
+
+		/* keep the last outlierThreshold preceding neighbors */
+		Arrays.sort(found, 0, numFound);
+		int kept = Math.min(numFound, outlierThreshold);
+		System.arraycopy(found, numFound - kept, preceding, slot * outlierThreshold, kept);
+		numPreceding[slot] = kept;
+		outlier[slot] = false;
+		checkSeq[slot] = NO_CHECK;
+		evaluate(slot);
+
+		cellOf(point, probe);
+		Bucket bucket = cells.get(probe);
+		if (bucket == null) {
+			bucket = new Bucket();
+			cells.put(new Cell(probe.coords.clone()), bucket);
+		}
+		bucket.add(seq);
+	}
+
+	/**
+	 * Collects the arrival numbers of the neighbors of the point at slot in
+	 * found, and credits the point to them as a succeeding neighbor.
+	 */
+	private void rangeQuery(int slot) {
+		int off = slot * numDim;
+		cellOf(values, off, probe);
+		long[] center = probe.coords.clone();
+		numFound = 0;
+
+		if (Math.pow(3, numDim) <= cells.size()) {
+			EGOGrid.forEachAdjacent(center, 0, probe.coords, () -> {
+				probe.rehash();
+				Bucket bucket = cells.get(probe);
+				if (bucket != null)
+					scan(bucket, off);
+			});
+		} else {
+			for (Map.Entry<Cell, Bucket> entry : cells.entrySet()) {
+				if (EGOGrid.isAdjacent(entry.getKey().coords, 0, center, 0, numDim))
+					scan(entry.getValue(), off);
+			}
+		}
+	}
+
+	private void scan(Bucket bucket, int off) {
+		for (int x = bucket.head; x < bucket.size; x++) {
+			long seq = bucket.seqs[x];
+			int slot = slot(seq);
+			if (!dist.withinRange(values, off, values, slot * numDim, numDim, eps))
+				continue;
+			if (numFound == found.length)
+				found = Arrays.copyOf(found, 2 * found.length);
+			found[numFound++] = seq;
+
+			succeeding[slot]++;
+			if (outlier[slot])
+				evaluate(slot);
+		}
+	}
+
+	/**
+	 * Removes the points that arrived before first, then checks the inliers
+	 * whose count may have dropped.
+	 */
+	private void expire(long first) {
+		for (; oldestSeq < first; oldestSeq++) {
+			int slot = slot(oldestSeq);
+			cellOf(values, slot * numDim, probe);
+			Bucket bucket = cells.get(probe);
+			bucket.removeFirst();
+			if (bucket.isEmpty())
+				cells.remove(probe);
+			if (outlier[slot]) {
+				numOutliers--;
+				notify(ids[slot], Status.EXPIRED);
+			}
+			checkSeq[slot] = NO_CHECK;
+		}
+
+		while (queue.size > 0 && queue.keys[1] < oldestSeq) {
+			long key = queue.keys[1];
+			int slot = queue.poll();
+			if (checkSeq[slot] == key)
+				evaluate(slot);
+		}
+	}
+
+	/**
+	 * Updates the status of the point at slot from its neighbor counts, and
+	 * schedules its next check if it is an unsafe inlier.
+	 */
+	private void evaluate(int slot) {
+		checkSeq[slot] = NO_CHECK;
+		int need = outlierThreshold - succeeding[slot];
+		int off = slot * outlierThreshold;
+		int alive = 0;
+		while (alive < numPreceding[slot] && preceding[off + numPreceding[slot] - 1 - alive] >= oldestSeq)
+			alive++;
+
+		boolean isOutlier = alive < need;
+		if (isOutlier != outlier[slot]) {
+			outlier[slot] = isOutlier;
+			numOutliers += isOutlier ? 1 : -1;
+			notify(ids[slot], isOutlier ? Status.OUTLIER : Status.INLIER);
+		}
+
+		if (!isOutlier && need > 0) {
+			/* the count drops below the threshold once this neighbor expires */
+			checkSeq[slot] = preceding[off + numPreceding[slot] - need];
+			queue.add(checkSeq[slot], slot);
+		}
+	}
+
+	private void notify(long id, Status status) {
+		if (listener != null)
+			listener.statusChanged(id, status);
+	}
+
+	private int slot(long seq) {
+		return (int) (seq & mask);
+	}
+
+	private void allocate(int capacity) {
+		mask = capacity - 1;
+		values = new double[capacity * numDim];
+		ids = new long[capacity];
+		times = new long[capacity];
+		succeeding = new int[capacity];
+		preceding = new long[capacity * outlierThreshold];
+		numPreceding = new int[capacity];
+		checkSeq = new long[capacity];
+		outlier = new boolean[capacity];
+	}
+
+	/**
+	 * Doubles the capacity of the time-based window, moving every point to
+	 * its slot in the new layout and rebuilding the queue.
+	 */
+	private void grow() {
+		int oldMask = mask;
+		double[] oldValues = values;
+		long[] oldIds = ids;
+		long[] oldTimes = times;
+		int[] oldSucceeding = succeeding;
+		long[] oldPreceding = preceding;
+		int[] oldNumPreceding = numPreceding;
+		long[] oldCheckSeq = checkSeq;
+		boolean[] oldOutlier = outlier;
+		allocate(2 * (oldMask + 1));
+
+		queue.size = 0;
+		for (long seq = oldestSeq; seq < nextSeq; seq++) {
+			int from = (int) (seq & oldMask);
+			int to = slot(seq);
+			System.arraycopy(oldValues, from * numDim, values, to * numDim, numDim);
+			System.arraycopy(oldPreceding, from * outlierThreshold, preceding, to * outlierThreshold, outlierThreshold);
+			ids[to] = oldIds[from];
+			times[to] = oldTimes[from];
+			succeeding[to] = oldSucceeding[from];
+			numPreceding[to] = oldNumPreceding[from];
+			checkSeq[to] = oldCheckSeq[from];
+			outlier[to] = oldOutlier[from];
+			if (checkSeq[to] != NO_CHECK)
+				queue.add(checkSeq[to], to);
+		}
+	}
+
+	private void cellOf(double[] data, int off, Cell cell) {
+		for (int j = 0; j < numDim; j++)
+			cell.coords[j] = (long) Math.floor(data[off + j] / eps);
+		cell.rehash();
+	}
+
+	private void cellOf(double[] point, Cell cell) {
+		cellOf(point, 0, cell);
+	}
+
+	/**
+	 * Number of points in the window.
+	 */
+	public int getNumPoints() {
+		return (int) (nextSeq - oldestSeq);
+	}
+
+	public int getNumOutliers() {
+		return numOutliers;
+	}
+
+	/**
+	 * Ids of the outliers of the window, in arrival order.
+	 */
+	public long[] getOutliers() {
+		long[] result = new long[numOutliers];
+		int n = 0;
+		for (long seq = oldestSeq; seq < nextSeq; seq++) {
+			if (outlier[slot(seq)])
+				result[n++] = ids[slot(seq)];
+		}
+		return result;
+	}
+
+	/**
+	 * Grid cell, hashed by its coordinates.
+	 */
+	private static class Cell {
+		final long[] coords;
+		int hash;
+
+		Cell(long[] coords) {
+			this.coords = coords;
+			rehash();
+		}
+
+		void rehash() {
+			hash = EGOGrid.hashCell(coords, 0, coords.length);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			return o instanceof Cell && Arrays.equals(coords, ((Cell) o).coords);
+		}
+	}
+
+	/**
+	 * Arrival numbers of the points of a cell, oldest first from head.
+	 */
+	private static class Bucket {
+		long[] seqs = new long[4];
+		int head;
+		int size;
+
+		void add(long seq) {
+			if (size == seqs.length) {
+				/* reclaim the expired head before growing */
+				if (head > 0) {
+					System.arraycopy(seqs, head, seqs, 0, size - head);
+					size -= head;
+					head = 0;
+				}
+				if (size == seqs.length)
+					seqs = Arrays.copyOf(seqs, 2 * seqs.length);
+			}
+			seqs[size++] = seq;
+		}
+
+		void removeFirst() {
+			head++;
+		}
+
+		boolean isEmpty() {
+			return head == size;
+		}
+	}
+
+	/**
+	 * Min-heap of slots by arrival number, from index 1.
+	 */
+	private static class CheckQueue {
+		long[] keys = new long[INITIAL_CAPACITY + 1];
+		int[] slots = new int[INITIAL_CAPACITY + 1];
+		int size;
+
+		void add(long key, int slot) {
+			if (size + 1 == keys.length) {
+				keys = Arrays.copyOf(keys, 2 * keys.length);
+				slots = Arrays.copyOf(slots, 2 * slots.length);
+			}
+			int i = ++size;
+			for (; i > 1 && keys[i >>> 1] > key; i >>>= 1) {
+				keys[i] = keys[i >>> 1];
+				slots[i] = slots[i >>> 1];
+			}
+			keys[i] = key;
+			slots[i] = slot;
+		}
+
+		/**
+		 * Removes the top of the heap and returns its slot.
+		 */
+		int poll() {
+			int top = slots[1];
+			long key = keys[size];
+			int slot = slots[size--];
+			int i = 1;
+			for (int c = 2; c <= size; i = c, c = 2 * i) {
+				if (c < size && keys[c + 1] < keys[c])
+					c++;
+				if (keys[c] >= key)
+					break;
+				keys[i] = keys[c];
+				slots[i] = slots[c];
+			}
+			keys[i] = key;
+			slots[i] = slot;
+			return top;
+		}
+	}
+}
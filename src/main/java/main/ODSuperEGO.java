@@ -1,81 +1,319 @@
 package main;
 
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Comparator;
 import java.util.Random;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 
+import common.CacheSize;
+import common.ConcurrentBitSet;
 import common.DistanceFunction;
 import common.EuclideanDistance;
-import common.Instance;
 import common.Table;
 
 public class ODSuperEGO {
 
+	/** Join threshold that lets the join pick its leaf size by itself. */
+	public static final int AUTO_JOIN_THRESHOLD = 0;
+	
+	/* bounds of the automatic leaf size */
+	private static final int MIN_LEAF_SIZE = 8;
+	private static final int MAX_LEAF_SIZE = 1 << 12;
+	/* block pairs seen between two adjustments of the automatic leaf size */
+	private static final int ADJUST_INTERVAL = 1 << 10;
+	/* size of the blocks timed to calibrate the automatic leaf size */
+	private static final int CALIBRATION_ROWS = 64;
+
+	/* leaf joins with at least this many dimensions may use dot products */
+	private static final int GEMM_DIMENSION = 32;
+	/* ... when the distance checks of nearby rows visit this share of them */
+	private static final double GEMM_MIN_VISITED = 0.8;
+	/* row pairs sampled to estimate that share */
+	private static final int GEMM_SAMPLES = 1 << 10;
+	/* tiles of a leaf join smaller than this use the level 2 cache */
+	private static final int MIN_TILE_ROWS = 4;
+	/* tile size of the default, row-by-row leaf joins */
+	private static final int ROW_BY_ROW = -1;
+
 	private int t;
+	private volatile int leafSize;
+	private int tileSize = ROW_BY_ROW;
+	private int tileRows;
+	private int gemmDimension;
+	private boolean useGemm;
+	private double gemmError;
+	private double[] normA;
+	private double[] normB;
+	private double[] radii;
+	private double[] reducedRadii;
+	private double bulkEps;
+	private AtomicIntegerArray ringCounts;
+	private int[] ringLimit;
+	private int[][] sweepResult;
+	private boolean cellFilter;
+	private boolean collapse;
+	private double collapseCellSide;
+	private int[] weightById;
+	private int[] weights;
+	private long[] weightSum;
+	private double pairCost;
+	private double leafCost;
+	private double nodeCost;
 	private Table a;
 	private Table b;
 	private Random rand;
 	private int numDim;
 	private DistanceFunction dist;
+	private final ThreadLocal<LeafScratch> scratch = ThreadLocal.withInitial(LeafScratch::new);
 	
-	private double[][] range1;
-	private double[][] range2;
-	private double[][] range3;
+	private int[][] range1;
+	private int[][] range2;
+	private int[][] range3;
+	private int[][] dimOrder;
+	private int[] cellA;
+	private int[] cellB;
+	private BlockTree treeA;
+	private BlockTree treeB;
 
 	private final boolean reorderDim;
 	private final boolean allowSelfSimilar;
 	private boolean isSelfJoin;
+	private boolean symmetric;
+	private boolean isSymmetric;
 	
-	private ArrayList<Integer> result;
+	private int[] result;
+	private ArrayList<Integer> resultList;
+	private AtomicIntegerArray counts;
+	private ConcurrentBitSet resolved;
 	private final int outlierThreshold;
+	private int maxThreshold;
+	private int countLimit;
+	
+	private int parallelism;
+	private long parallelCutoff;
 
 	public ODSuperEGO(int outlierThreshold, int joinThreshold) {
 		this(outlierThreshold, joinThreshold, false, false, new EuclideanDistance());
 	}
 	
 	public ODSuperEGO(int outlierThreshold) {
-		this(outlierThreshold, 1000, false, false, new EuclideanDistance());
+		this(outlierThreshold, AUTO_JOIN_THRESHOLD, false, false, new EuclideanDistance());
 	}
 	
 	public ODSuperEGO(int outlierThreshold, int joinThreshold, boolean reorderDim, boolean allowSelfSimilar) {
 		this(outlierThreshold, joinThreshold, reorderDim, allowSelfSimilar, new EuclideanDistance());
 	}
 	
+	/**
+	 * Blocks with fewer than joinThreshold rows are joined pair by pair, which
+	 * must be at least 3 as in {@link BlockTree}. With
+	 * {@link #AUTO_JOIN_THRESHOLD} the leaf size is chosen from a short
+	 * calibration run and adjusted during the join.
+	 */
 	public ODSuperEGO(int outlierThreshold, int joinThreshold, boolean reorderDim,
 					boolean allowSelfSimilar, DistanceFunction fn) {
+		if (joinThreshold != AUTO_JOIN_THRESHOLD && joinThreshold < 3)
+			throw new IllegalArgumentException("Invalid join threshold: " + joinThreshold);
 		this.outlierThreshold = outlierThreshold;
+		this.countLimit = outlierThreshold;
 		this.reorderDim = reorderDim;
 		this.allowSelfSimilar = allowSelfSimilar;
 		this.dist = fn;
-		this.result = new ArrayList<Integer>();
+		this.result = new int[0];
 		this.t = joinThreshold;
 		this.isSelfJoin = false;
+		this.symmetric = true;
 		this.rand = new Random();
+		this.parallelism = 1;
+		this.parallelCutoff = 1 << 18;
+		this.gemmDimension = GEMM_DIMENSION;
+	}
+	
+	/**
+	 * Whether self-joins evaluate each pair once and credit both points
+	 * (the default) instead of joining every pair in both directions.
+	 */
+	public void setSymmetric(boolean symmetric) {
+		this.symmetric = symmetric;
+	}
+	
+	/**
+	 * Number of threads used by the join; 1 (the default) runs sequentially.
+	 */
+	public void setParallelism(int parallelism) {
+		if (parallelism < 1)
+			throw new IllegalArgumentException("Invalid parallelism: " + parallelism);
+		this.parallelism = parallelism;
+	}
+	
+	/**
+	 * Sub-joins with fewer than cutoff candidate pairs (|A| x |B|) are run
+	 * whole by one worker instead of being split into parallel tasks.
+	 */
+	public void setParallelCutoff(long cutoff) {
+		if (cutoff < 1)
+			throw new IllegalArgumentException("Invalid parallel cutoff: " + cutoff);
+		this.parallelCutoff = cutoff;
+	}
+	
+	/**
+	 * Number of rows of A and of B joined at a time by the leaf joins. With 0
+	 * it is sized so that two tiles fit in the level 1 data cache; a size at
+	 * least the leaf size joins the leaves row by row. By default the leaves
+	 * are joined row by row, except by the dot-product join, which always
+	 * works on tiles and sizes them like with 0.
+	 */
+	public void setTileSize(int rows) {
+		if (rows < 0)
+			throw new IllegalArgumentException("Invalid tile size: " + rows);
+		this.tileSize = rows;
+	}
+	
+	/**
+	 * Whether the join is preceded by a pass over a grid of side
+	 * eps / (2 sqrt(d)), see {@link CellFilter}, which marks the rows with
+	 * more than outlierThreshold neighbors guaranteed by their cell and the
+	 * cells around it. The join then only counts the neighbors of the other
+	 * rows, which pays off on dense tables.
+	 */
+	public void setCellFilter(boolean cellFilter) {
+		this.cellFilter = cellFilter;
+	}
+	
+	/**
+	 * Whether self-joins first collapse duplicate rows into one weighted
+	 * representative, see {@link Duplicates}. Counts are computed per
+	 * representative, crediting weights, and reported for every row.
+	 */
+	public void setCollapseDuplicates(boolean collapse) {
+		this.collapse = collapse;
+	}
+	
+	/**
+	 * With a side above 0, collapsing also merges rows that merely fall in the
+	 * same cell of a grid of that side, which makes the counts approximate.
+	 * The default, 0, merges exact duplicates only.
+	 */
+	public void setCollapseCellSide(double side) {
+		if (side < 0)
+			throw new IllegalArgumentException("Invalid cell side: " + side);
+		this.collapseCellSide = side;
+	}
+	
+	/**
+	 * Tables with at least this many dimensions (32 by default) may be joined
+	 * with the Euclidean distance by computing the dot products of each pair
+	 * of tiles at once, like a matrix multiplication, and deriving the
+	 * distances from the row norms. This is done when the distance checks of
+	 * nearby rows would visit most dimensions anyway, as the dot products
+	 * cannot stop early. Integer.MAX_VALUE disables it.
+	 */
+	public void setGemmDimension(int numDim) {
+		if (numDim < 1)
+			throw new IllegalArgumentException("Invalid dimension: " + numDim);
+		this.gemmDimension = numDim;
+	}
+	
+	/**
+	 * Counts neighbors exactly up to max instead of outlierThreshold, so one
+	 * join gives the outliers for every threshold up to max + 1, see
+	 * {@link #getOutliers(int)} and {@link common.AUC#measureThresholds}.
+	 * Counting further prunes less. 0 (the default) counts up to
+	 * outlierThreshold.
+	 */
+	public void setMaxThreshold(int max) {
+		if (max < 0)
+			throw new IllegalArgumentException("Invalid max threshold: " + max);
+		this.maxThreshold = max;
 	}
 	
 	public void range(Table a, double eps) {
 		isSelfJoin = true;
-		range(a, a, eps);
+		if (collapse)
+			collapsedRange(a, eps);
+		else
+			range(a, a, eps);
 		isSelfJoin = false;
 	}
 	
+	/**
+	 * Self-join at several radii in one pass: the table is sorted and joined
+	 * once, at the largest radius, and each pair found is counted for the
+	 * smallest radius it is within.
+	 * @param radii strictly increasing radii.
+	 * @return for each radius, the neighbor count of each row id, capped like
+	 * {@link #getCounts()}. getCounts() returns those of the largest radius.
+	 */
+	public int[][] rangeSweep(Table a, double[] radii) {
+		isSelfJoin = true;
+		try {
+			return rangeSweep(a, a, radii);
+		} finally {
+			isSelfJoin = false;
+		}
+	}
+	
+	public int[][] rangeSweep(Table a, Table b, double[] radii) {
+		if (radii.length == 0)
+			throw new IllegalArgumentException("No radius given");
+		for (int k = 0; k < radii.length; k++) {
+			if (!(radii[k] > 0) || (k > 0 && radii[k] <= radii[k - 1]))
+				throw new IllegalArgumentException("Radii must be positive and strictly increasing: " + Arrays.toString(radii));
+		}
+		
+		this.radii = radii.clone();
+		this.reducedRadii = new double[radii.length];
+		for (int k = 0; k < radii.length; k++)
+			reducedRadii[k] = dist.reduce(radii[k]);
+		try {
+			if (isSelfJoin && collapse)
+				collapsedRange(a, radii[radii.length - 1]);
+			else
+				range(a, b, radii[radii.length - 1]);
+			return sweepResult;
+		} finally {
+			this.radii = null;
+			this.reducedRadii = null;
+			this.sweepResult = null;
+		}
+	}
+	
+	/**
+	 * Self-join of the representatives of the rows of a, whose counts are
+	 * then copied to every row they represent.
+	 */
+	private void collapsedRange(Table a, double eps) {
+		Duplicates duplicates = Duplicates.collapse(a, collapseCellSide);
+		weightById = duplicates.getWeights();
+		try {
+			range(duplicates.getTable(), duplicates.getTable(), eps);
+		} finally {
+			weightById = null;
+		}
+		
+		result = expand(result, a, duplicates);
+		resultList = null;
+		if (sweepResult != null) {
+			for (int k = 0; k < sweepResult.length; k++)
+				sweepResult[k] = expand(sweepResult[k], a, duplicates);
+		}
+	}
+	
+	private static int[] expand(int[] repCounts, Table a, Duplicates duplicates) {
+		int[] counts = new int[a.getNumRows()];
+		for (int r = 0; r < a.getNumRows(); r++)
+			counts[a.getId(r)] = repCounts[duplicates.getRepresentative(r)];
+		return counts;
+	}
+	
 	public void range(Table a, Table b, double eps) {
 		assert a.getNumCols() == b.getNumCols();
 		assert eps > 0;
 		
-		reset();
-		
-		for (int i = 0; i < a.getNumRows(); i++)
-			result.add(0);
-		
-		numDim = a.getNumCols();
-		
-		// ranges for SimpleJoin
-		range1 = new double[numDim + 1][2];
-		range2 = new double[numDim + 1][2];
-		range3 = new double[numDim + 1][2];		
-
+		prepare(a, eps);
 		if (isSelfJoin) {
 			this.b = this.a = a.clone();
 		} else {
@@ -86,20 +324,160 @@ public class ODSuperEGO {
 		// reorder dimension
 		if (reorderDim)
 			doDimensionReorder(eps);
+		dimOrder = getDimensionOrder();
 		
 		// ego-sort
-		EGOSort(this.a, eps);
-		if (!isSelfJoin)
-			EGOSort(this.b, eps);
+		cellA = EGOSort(this.a, eps);
+		cellB = isSelfJoin ? cellA : EGOSort(this.b, eps);
+		join(eps);
+	}
+	
+	/**
+	 * Joins a with the rows of an {@link EGOIndex}, held in runs already in
+	 * EGO order at eps with their block trees and weights. Each run is joined
+	 * in place as B, and the counts add up over the runs: only a is copied
+	 * and sorted.
+	 */
+	void range(Table a, SortedRun[] runs, double eps) {
+		if (reorderDim)
+			throw new IllegalStateException("Dimension reordering would break the order of the index");
+		assert eps > 0;
+		
+		prepare(a, eps);
+		this.a = a.clone();
+		dimOrder = getDimensionOrder();
+		cellA = EGOSort(this.a, eps);
+		treeA = new BlockTree(this.a, getMinBlockSize());
+		normA = null;
+		for (SortedRun run : runs) {
+			assert a.getNumCols() == run.getTable().getNumCols();
+			this.b = run.getTable();
+			cellB = run.getCells();
+			treeB = run.getTree();
+			weights = run.getWeights();
+			weightSum = run.getWeightSum();
+			joinBlocks(eps, run);
+		}
+		collectCounts();
+	}
+	
+	/**
+	 * Allocates the counts of the rows of a and the dimension ranges.
+	 */
+	private void prepare(Table a, double eps) {
+		counts = new AtomicIntegerArray(a.getNumRows());
+		resolved = new ConcurrentBitSet(a.getNumRows());
+		countLimit = Math.max(outlierThreshold, maxThreshold);
+		/* in a sweep, counts holds the neighbors within the smallest radius */
+		ringCounts = radii != null ? new AtomicIntegerArray(a.getNumRows() * (radii.length - 1)) : null;
+		ringLimit = radii != null ? new int[a.getNumRows()] : null;
+		if (ringLimit != null)
+			Arrays.fill(ringLimit, radii.length);
+		bulkEps = radii != null ? radii[0] : eps;
+		isSymmetric = isSelfJoin && symmetric;
+		
+		numDim = a.getNumCols();
+		
+		// ranges for SimpleJoin
+		range1 = new int[numDim + 1][2];
+		range2 = new int[numDim + 1][2];
+		range3 = new int[numDim + 1][2];
+		initDimensionRanges();
+	}
+	
+	/**
+	 * EGO join of the sorted tables a and b, from their weights to the
+	 * counts in result.
+	 */
+	private void join(double eps) {
+		initWeights();
+		
+		// block bounding rectangles
+		int minSize = getMinBlockSize();
+		treeA = new BlockTree(this.a, minSize);
+		treeB = isSelfJoin ? treeA : new BlockTree(this.b, minSize);
+		normA = null;
+		joinBlocks(eps, null);
+		collectCounts();
+	}
+	
+	/**
+	 * Smallest block the block trees split, that of the automatic leaf size
+	 * or the join threshold.
+	 */
+	int getMinBlockSize() {
+		return isAutoThreshold() ? MIN_LEAF_SIZE : t;
+	}
+	
+	/**
+	 * Joins the blocks of a with those of b, whose weights and block tree are
+	 * set, adding to the counts. The squared norms of b are kept in run, if
+	 * given, for its next joins.
+	 */
+	private void joinBlocks(double eps, SortedRun run) {
+		if (cellFilter)
+			markInliers();
+
+		/* tiles of the dot-product join, row by row is decided below */
+		tileRows = tileSize > 0 ? tileSize : getTileRows();
+		
+		// row norms of the dot-product leaf join
+		useGemm = numDim >= gemmDimension && dist instanceof EuclideanDistance
+				&& visitedDimensions(eps) >= GEMM_MIN_VISITED;
+		if (useGemm) {
+			/* bounds the rounding error of |a|^2 + |b|^2 - 2 a.b and of the distance function */
+			gemmError = 4 * (numDim + 2) * Math.ulp(1.0);
+			if (normA == null)
+				normA = squaredNorms(this.a);
+			if (isSelfJoin) {
+				normB = normA;
+			} else if (run != null) {
+				if (run.getSquaredNorms() == null)
+					run.setSquaredNorms(squaredNorms(this.b));
+				normB = run.getSquaredNorms();
+			} else {
+				normB = squaredNorms(this.b);
+			}
+		}
+		if (tileSize == ROW_BY_ROW && !useGemm)
+			tileRows = Integer.MAX_VALUE;
+		leafSize = isAutoThreshold() ? calibrate(eps) : t;
 
 		// ego-join
 		int startDim = 0;
-		int frA = 0;
-		int toA = a.getNumRows() - 1;
-		int frB = 0;
-		int toB = b.getNumRows() - 1;
+		int root = 1;
 		
-		EGOJoin(frA, toA, frB, toB, startDim, eps);	
+		if (this.a.getNumRows() > 0 && this.b.getNumRows() > 0) {
+			if (parallelism > 1)
+				ParallelJoin(root, root, startDim, eps);
+			else
+				EGOJoin(root, root, startDim, eps);
+		}
+	}
+	
+	/**
+	 * Moves the counts of the join to result.
+	 */
+	private void collectCounts() {
+		result = new int[counts.length()];
+		for (int i = 0; i < result.length; i++)
+			result[i] = counts.get(i);
+		resultList = null;
+		counts = null;
+		
+		if (radii != null) {
+			int numRings = radii.length - 1;
+			sweepResult = new int[radii.length][];
+			sweepResult[0] = result;
+			for (int k = 1; k < radii.length; k++) {
+				sweepResult[k] = sweepResult[k - 1].clone();
+				for (int i = 0; i < result.length; i++)
+					sweepResult[k][i] += ringCounts.get(i * numRings + k - 1);
+			}
+			result = sweepResult[numRings];
+			ringCounts = null;
+			ringLimit = null;
+		}
 	}
 	
 	private void doDimensionReorder(double eps) {
@@ -113,23 +491,25 @@ public class ODSuperEGO {
 		double[][] hA = new double[numBuckets][numDim];
 		double[][] hB = new double[numBuckets][numDim];
 		double[] avgDist = new double[numDim];
+		double[] da = a.getData();
+		double[] db = b.getData();
 		
 		for (int i = 0; i < sampleSize; i++) {
 			// get random point from A
 			int maxRowsA = (int) a.getNumRows() - 1;
 			int rndRowAId = nextInt(0, maxRowsA);
-			double[] rndA = a.getInstance(rndRowAId).getValues();
+			int rndA = a.getOffset(rndRowAId);
 			
 			// get random point from B
 			int maxRowsB = (int) b.getNumRows() - 1;
 			int rndRowBId = nextInt(0, maxRowsB);
-			double[] rndB = b.getInstance(rndRowBId).getValues();
+			int rndB = b.getOffset(rndRowBId);
 			
 			// update stats
 			for (int j = 0; j < numDim; j++) {
-				avgDist[j] += Math.abs(rndA[j] - rndB[j]);
-				int bucket_a = (int) (rndA[j]/eps);
-				int bucket_b = (int) (rndB[j]/eps);
+				avgDist[j] += Math.abs(da[rndA + j] - db[rndB + j]);
+				int bucket_a = (int) (da[rndA + j]/eps);
+				int bucket_b = (int) (db[rndB + j]/eps);
 				hA[bucket_a][j] += 1;
 				hB[bucket_b][j] += 1;
 			}
@@ -268,118 +648,961 @@ public class ODSuperEGO {
 	    }
 	}
 	
-	private int nextInt(int min, int max) {
-		return rand.nextInt(max - min + 1) + min;
+	/**
+	 * Without statistics on the dimensions, every join checks all dimensions
+	 * in their natural order.
+	 */
+	private void initDimensionRanges() {
+		for (int i = 0; i <= numDim; i++) {
+			range1[i][0] = 0;
+			range1[i][1] = numDim - 1;
+			range2[i][0] = 0;
+			range2[i][1] = -1;
+			range3[i][0] = 0;
+			range3[i][1] = -1;
+		}
 	}
 	
-	private void EGOSort(Table t, double eps) {
-		Collections.sort(t.asList(), new Comparator<Instance>() {
-			@Override
-			public int compare(Instance r1, Instance r2) {
-				for (int i = 0; i < r1.getValues().length; i++) {
-					int d = ((int) (r1.getAt(i)/eps)) - ((int) (r2.getAt(i)/eps));					
-					if (d != 0)
-						return d;
+	/**
+	 * Concatenates the non-empty intervals among range1, range2 and range3 of
+	 * each start dimension, in the order in which NaiveJoin visits them.
+	 */
+	private int[][] getDimensionOrder() {
+		int[][] order = new int[numDim + 1][];
+		for (int i = 0; i <= numDim; i++) {
+			int[] intervals = new int[6];
+			int k = 0;
+			for (int[][] range : new int[][][] { range1, range2, range3 }) {
+				if (range[i][0] <= range[i][1]) {
+					intervals[k++] = range[i][0];
+					intervals[k++] = range[i][1];
 				}
-				return 0;
 			}
-		});
+			order[i] = Arrays.copyOf(intervals, k);
+		}
+		return order;
 	}
 	
-	private void EGOJoin(int frA, int toA, int frB, int toB, int startDim, double eps) {
-		int szA = toA - frA + 1; 
-		int szB = toB - frB + 1;
-
-		double[] fstA = a.getInstance(frA).getValues();
-		double[] lstA = a.getInstance(toA).getValues();
-		double[] fstB = b.getInstance(frB).getValues();
-		double[] lstB = b.getInstance(toB).getValues();
+	private int getTileRows() {
+		int rowBytes = Double.BYTES * Math.max(1, numDim);
+		int rows = CacheSize.l1() / (2 * rowBytes);
+		if (rows < MIN_TILE_ROWS)
+			rows = CacheSize.l2() / (2 * rowBytes);
+		return Math.max(1, rows);
+	}
+	
+	/**
+	 * Weights of the rows of B in EGO order, and their prefix sums. A
+	 * representative starts with a neighbor for each other row it stands for.
+	 */
+	private void initWeights() {
+		int[] ids = b.getIds();
+		weights = new int[b.getNumRows()];
+		weightSum = new long[b.getNumRows() + 1];
+		for (int j = 0; j < weights.length; j++) {
+			weights[j] = weightById != null ? weightById[ids[j]] : 1;
+			weightSum[j + 1] = weightSum[j] + weights[j];
+			if (weightById != null)
+				credit(ids[j], j, weights[j] - 1);
+		}
+	}
+	
+	/**
+	 * Resolves the rows of A whose cell-based lower bound on neighbors within
+	 * the smallest radius exceeds countLimit, and sets their count to it.
+	 * Rows resolved by an earlier run of B keep their count.
+	 */
+	private void markInliers() {
+		long[] bounds = CellFilter.lowerBounds(a, b, weights, bulkEps);
+		/* the bounds count the row itself, or one row of B with its id */
+		int self = allowSelfSimilar ? 0 : 1;
+		for (int i = 0; i < bounds.length; i++) {
+			long count = bounds[i] - self;
+			if (count > countLimit && !resolved.get(i)) {
+				counts.set(a.getId(i), (int) Math.min(Integer.MAX_VALUE, count));
+				resolved.set(i);
+			}
+		}
+	}
+	
+	private int weightOf(int from, int to) {
+		return (int) Math.min(Integer.MAX_VALUE, weightSum[to + 1] - weightSum[from]);
+	}
+	
+	private boolean isAutoThreshold() {
+		return t == AUTO_JOIN_THRESHOLD;
+	}
+	
+	/**
+	 * Leaf size used by the last join; with the automatic join threshold
+	 * this is the size it had settled on when the join ended.
+	 */
+	public int getJoinThreshold() {
+		return leafSize;
+	}
+	
+	/**
+	 * Times the leaf join on a few blocks of CALIBRATION_ROWS rows and of
+	 * MIN_LEAF_SIZE rows, and the pruning tests on random block pairs, against
+	 * scratch counts so the join itself is unaffected. Returns the leaf size
+	 * at which splitting a block pair pays off when half of its sub-joins are
+	 * pruned.
+	 */
+	private int calibrate(double eps) {
+		int numRows = Math.min(a.getNumRows(), b.getNumRows());
+		if (numRows < 2 * CALIBRATION_ROWS)
+			return MIN_LEAF_SIZE;
+		
+		AtomicIntegerArray savedCounts = counts;
+		AtomicIntegerArray savedRingCounts = ringCounts;
+		ConcurrentBitSet savedResolved = resolved;
+		counts = new AtomicIntegerArray(savedCounts.length());
+		int[] savedRingLimit = ringLimit;
+		ringCounts = savedRingCounts != null ? new AtomicIntegerArray(savedRingCounts.length()) : null;
+		ringLimit = savedRingLimit != null ? savedRingLimit.clone() : null;
+		resolved = new ConcurrentBitSet(savedResolved.size());
+		
+		/* bounds the work of a round to about 2^20 coordinates per table */
+		int reps = Math.max(1, (1 << 20) / (CALIBRATION_ROWS * CALIBRATION_ROWS * numDim));
+		int numNodes = Math.min(treeA.getNumNodes(), treeB.getNumNodes()) - 1;
+		long small = 0, large = 0, nodes = 0;
+		
+		try {
+			/* the second round runs with warmed-up code */
+			for (int round = 0; round < 2; round++) {
+				small = large = nodes = 0;
+				for (int r = 0; r < reps; r++) {
+					/* neighbors in EGO order are close to each other, so join adjacent blocks */
+					int fr = rand.nextInt(numRows - 2 * CALIBRATION_ROWS + 1);
+					int mid = fr + CALIBRATION_ROWS;
+					
+					long start = System.nanoTime();
+					leafJoin(fr, fr + MIN_LEAF_SIZE - 1, mid, mid + MIN_LEAF_SIZE - 1, eps);
+					small += System.nanoTime() - start;
+					
+					start = System.nanoTime();
+					leafJoin(fr, mid - 1, mid, mid + CALIBRATION_ROWS - 1, eps);
+					large += System.nanoTime() - start;
+					
+					start = System.nanoTime();
+					for (int k = 0; k < 4 * CALIBRATION_ROWS; k++)
+						prune(1 + rand.nextInt(numNodes), 1 + rand.nextInt(numNodes), eps);
+					nodes += System.nanoTime() - start;
+				}
+			}
+		} finally {
+			counts = savedCounts;
+			ringCounts = savedRingCounts;
+			ringLimit = savedRingLimit;
+			resolved = savedResolved;
+		}
+		
+		/* a leaf join of s x s rows costs leafCost + s^2 * pairCost */
+		double pairs = (double) CALIBRATION_ROWS * CALIBRATION_ROWS - MIN_LEAF_SIZE * MIN_LEAF_SIZE;
+		pairCost = Math.max(1, large - small) / (pairs * reps);
+		leafCost = Math.max(0, small / (double) reps - MIN_LEAF_SIZE * MIN_LEAF_SIZE * pairCost);
+		nodeCost = nodes / (4.0 * CALIBRATION_ROWS * reps);
+		return targetLeafSize(0.5, MIN_LEAF_SIZE, MAX_LEAF_SIZE);
+	}
+	
+	private void leafJoin(int frA, int toA, int frB, int toB, double eps) {
+		if (isSymmetric)
+			SymmetricJoin(frA, toA, frB, toB, 0, eps);
+		else
+			NaiveJoin(frA, toA, frB, toB, 0, eps);
+	}
+	
+	/**
+	 * Splitting a join of s x s rows into four sub-joins costs four visits and
+	 * the leaf joins of the sub-joins that are not pruned, and saves the pair
+	 * checks of those that are. It pays off once
+	 * pruned * s^2 * pairCost > 4 * nodeCost + (3 - 4 * pruned) * leafCost.
+	 */
+	private int targetLeafSize(double pruned, int min, int max) {
+		pruned = Math.max(pruned, 1e-3);
+		double cost = 4 * nodeCost + Math.max(0, 3 - 4 * pruned) * leafCost;
+		double s = Math.sqrt(cost / (pruned * pairCost));
+		return (int) Math.max(min, Math.min(max, Math.ceil(s)));
+	}
+	
+	private int nextInt(int min, int max) {
+		return rand.nextInt(max - min + 1) + min;
+	}
+	
+	/**
+	 * Sorts t in EGO order and returns the cells of its rows in that order.
+	 */
+	private int[] EGOSort(Table t, double eps) {
+		int[] cells = EGOGrid.getCells(t, eps);
+		int[] order = EGOGrid.sort(cells, t.getNumRows(), t.getNumCols());
+		t.permute(order);
+		return EGOGrid.permute(cells, t.getNumCols(), order);
+	}
+	
+	/**
+	 * Returns the first dimension in which block A or block B spans more than
+	 * one cell. It selects the order in which the leaf join visits dimensions.
+	 */
+	private int EGOStrategy(int frA, int toA, int frB, int toB, int startDim) {
+		int fstA = frA * numDim;
+		int lstA = toA * numDim;
+		int fstB = frB * numDim;
+		int lstB = toB * numDim;
 		
-		// Ego-Strategy
-		double loA, hiA, loB, hiB;
 		for (int i = startDim; i < numDim; i++) {
-			loA = (int) (fstA[i] / eps);
-			hiB = (int) (lstB[i] / eps);
-			if (loA > hiB + 1) return;
-			loB = (int) (fstB[i] / eps);
-			hiA = (int) (lstA[i] / eps);
-			if (loB > hiA + 1) return;
-			if ((loA < hiA) || (loB < hiB)) {
-				startDim = i;
-				break;
+			if ((cellA[fstA + i] < cellA[lstA + i]) || (cellB[fstB + i] < cellB[lstB + i]))
+				return i;
+		}
+		return startDim;
+	}
+	
+	/**
+	 * Whether no point of block A is within eps of any point of block B,
+	 * judging by their bounding rectangles alone.
+	 */
+	private boolean isSeparated(int nodeA, int nodeB, double eps) {
+		return dist.minDistance(
+				treeA.getLower(), treeA.getUpper(), treeA.getOffset(nodeA),
+				treeB.getLower(), treeB.getUpper(), treeB.getOffset(nodeB),
+				numDim) > eps;
+	}
+	
+	/**
+	 * Whether joining the blocks cannot change any outcome, i.e. every point
+	 * whose count the join would update already has more than
+	 * countLimit neighbors.
+	 */
+	private boolean isResolved(int frA, int toA, int frB, int toB) {
+		return resolved.allSet(frA, toA) && (!isSymmetric || resolved.allSet(frB, toB));
+	}
+	
+	/**
+	 * Whether every point of block A is within eps of every point of block B,
+	 * judging by their bounding rectangles alone.
+	 */
+	private boolean isContained(int nodeA, int nodeB, double eps) {
+		return dist.maxDistance(
+				treeA.getLower(), treeA.getUpper(), treeA.getOffset(nodeA),
+				treeB.getLower(), treeB.getUpper(), treeB.getOffset(nodeB),
+				numDim) <= eps;
+	}
+	
+	/**
+	 * Whether block A can be joined with block B by BulkJoin, which credits
+	 * the neighbors within the smallest radius of a sweep.
+	 */
+	private boolean canBulkJoin(int nodeA, int nodeB) {
+		/* outside self-joins, rows with the same id are unknown in advance */
+		if (!isSelfJoin && !allowSelfSimilar)
+			return false;
+		return isContained(nodeA, nodeB, bulkEps);
+	}
+	
+	/**
+	 * Sequential EGO join of block A with block B. Sub-joins are kept on an
+	 * explicit stack instead of the call stack, so the depth of the block tree
+	 * is not bounded by the thread's stack size.
+	 */
+	private void EGOJoin(int nodeA, int nodeB, int startDim, double eps) {
+		int[] stack = new int[3 * 64];
+		int[] children = new int[3 * 4];
+		int top = 0;
+		
+		/* leaf pairs and their candidate pairs, seen and pruned */
+		int leafSize = this.leafSize;
+		int seen = 0;
+		long pairs = 0;
+		long prunedPairs = 0;
+		
+		stack[top++] = nodeA;
+		stack[top++] = nodeB;
+		stack[top++] = startDim;
+		while (top > 0) {
+			startDim = stack[--top];
+			nodeB = stack[--top];
+			nodeA = stack[--top];
+			
+			boolean atLeaves = isAutoThreshold()
+					&& isLeaf(treeA, nodeA, leafSize) && isLeaf(treeB, nodeB, leafSize);
+			if (prune(nodeA, nodeB, eps)) {
+				if (atLeaves)
+					prunedPairs += (long) treeA.getSize(nodeA) * treeB.getSize(nodeB);
+				continue;
+			}
+			
+			if (atLeaves) {
+				pairs += (long) treeA.getSize(nodeA) * treeB.getSize(nodeB);
+				if (++seen == ADJUST_INTERVAL) {
+					leafSize = adjustLeafSize(leafSize, prunedPairs / (double) (pairs + prunedPairs));
+					this.leafSize = leafSize;
+					seen = 0;
+					pairs = prunedPairs = 0;
+				}
+			}
+			
+			int n = EGOStep(nodeA, nodeB, startDim, eps, leafSize, children);
+			if (top + n > stack.length)
+				stack = Arrays.copyOf(stack, 2 * (top + n));
+			/* pushed in reverse, so they run in the order EGOStep lists them */
+			for (int k = n - 3; k >= 0; k -= 3) {
+				stack[top++] = children[k];
+				stack[top++] = children[k + 1];
+				stack[top++] = children[k + 2];
 			}
 		}
+	}
+	
+	/**
+	 * Moves the leaf size towards the one at which splitting pays off for the
+	 * fraction of candidate pairs pruned among the last leaf pairs, at most
+	 * by a factor of two.
+	 */
+	private int adjustLeafSize(int leafSize, double pruned) {
+		int min = Math.max(treeA.getMinSize(), Math.max(treeB.getMinSize(), leafSize / 2));
+		int max = Math.min(MAX_LEAF_SIZE, 2 * leafSize);
+		return targetLeafSize(pruned, min, max);
+	}
+	
+	private static boolean isLeaf(BlockTree tree, int node, int leafSize) {
+		return tree.isLeaf(node) || tree.getSize(node) < leafSize;
+	}
+	
+	/**
+	 * Whether the join of block A with block B is done without visiting its
+	 * sub-joins: it cannot change any outcome, no pair is within eps, or every
+	 * pair is and the blocks were bulk joined.
+	 */
+	private boolean prune(int nodeA, int nodeB, double eps) {
+		int frA = treeA.getFrom(nodeA), toA = treeA.getTo(nodeA);
+		int frB = treeB.getFrom(nodeB), toB = treeB.getTo(nodeB);
+		
+		if (isResolved(frA, toA, frB, toB)) return true;
+		if (radii != null)
+			eps = sweepRadius(frA, toA, frB, toB);
+		if (isSeparated(nodeA, nodeB, eps)) return true;
+		
+		if (canBulkJoin(nodeA, nodeB)) {
+			BulkJoin(frA, toA, frB, toB);
+			return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * Joins block A with block B if both are leaves (blocks with fewer than
+	 * leafSize rows). Otherwise writes the sub-joins to run as
+	 * (nodeA, nodeB, startDim) triples into children, in the order they should
+	 * run, and returns the number of ints written.
+	 */
+	private int EGOStep(int nodeA, int nodeB, int startDim, double eps, int leafSize, int[] children) {
+		int frA = treeA.getFrom(nodeA), toA = treeA.getTo(nodeA);
+		int frB = treeB.getFrom(nodeB), toB = treeB.getTo(nodeB);
+		int szA = toA - frA + 1, szB = toB - frB + 1;
+		boolean diagonal = isSymmetric && nodeA == nodeB;
+		
+		// Ego-Strategy
+		startDim = EGOStrategy(frA, toA, frB, toB, startDim);
 		
 		// Ego-Join
-		int midA = (int) (frA + (szA/2.0));
-		int midB = (int) (frB + (szB/2.0));
+		int a1 = 2 * nodeA, a2 = a1 + 1;
+		int b1 = 2 * nodeB, b2 = b1 + 1;
+		boolean leafA = isLeaf(treeA, nodeA, leafSize);
+		boolean leafB = isLeaf(treeB, nodeB, leafSize);
 		
-		if ((szA < t) && (szB < t)) {
-			NaiveJoin(frA, toA, frB, toB, eps);
-			return;
+		if (leafA && leafB) {
+			if (isSymmetric)
+				SymmetricJoin(frA, toA, frB, toB, startDim, eps);
+			else
+				NaiveJoin(frA, toA, frB, toB, startDim, eps);
+			return 0;
 		}
-
-		if ((szA < t) && (szB >= t)) {
-			EGOJoin(frA, toA, frB     , midB, startDim, eps);
-			EGOJoin(frA, toA, midB + 1,  toB, startDim, eps);
-			return;
+		
+		/* split only the larger block when the two are far apart in size */
+		if (!diagonal && !leafA && !leafB) {
+			leafA = szA < szB / 2;
+			leafB = szB < szA / 2;
 		}
 		
-		if ((szA >= t) && (szB < t)) {
-			EGOJoin(frA     , midA, frB, toB, startDim, eps);
-			EGOJoin(midA + 1, toA , frB, toB, startDim, eps);
-			return;
+		int n = 0;
+		if (leafA) {
+			n = child(children, n, nodeA, b1, startDim);
+			return child(children, n, nodeA, b2, startDim);
+		}
+		
+		if (leafB) {
+			n = child(children, n, a1, nodeB, startDim);
+			return child(children, n, a2, nodeB, startDim);
 		}
 		
-		if ((szA >= t) && (szB >= t)) {
-			/* A_1 join B_1 */
-			EGOJoin(frA     , midA, frB     , midB	, startDim, eps);
-			/* A_1 join B_2 */
-			EGOJoin(frA     , midA, midB + 1, toB	, startDim, eps);
-			/* A_2 join B_1 */
-			EGOJoin(midA + 1, toA , frB		, midB	, startDim, eps);
-			/* comment to avoid incomplete neighbor count in R */
-//			if (!isSelfJoin)
-				/* A_2 join B_2 */
-				EGOJoin(midA + 1, toA , midB + 1, toB	, startDim, eps);
+		if (isSymmetric) {
+			/* near halves first, they resolve most points cheaply */
+			n = child(children, n, a1, b1, startDim);
+			n = child(children, n, a2, b2, startDim);
+			n = child(children, n, a1, b2, startDim);
+			/* A_2 join B_1 mirrors A_1 join B_2 on the diagonal */
+			if (!diagonal)
+				n = child(children, n, a2, b1, startDim);
+			return n;
+		}
+		
+		/* A_1 join B_1 */
+		n = child(children, n, a1, b1, startDim);
+		/* A_1 join B_2 */
+		n = child(children, n, a1, b2, startDim);
+		/* A_2 join B_1 */
+		n = child(children, n, a2, b1, startDim);
+		/* A_2 join B_2 */
+		return child(children, n, a2, b2, startDim);
+	}
+	
+	private static int child(int[] children, int n, int nodeA, int nodeB, int startDim) {
+		children[n] = nodeA;
+		children[n + 1] = nodeB;
+		children[n + 2] = startDim;
+		return n + 3;
+	}
+	
+	/**
+	 * Parallel EGO join on the shared {@link ParallelPool}, see
+	 * {@link JoinTask}.
+	 */
+	private void ParallelJoin(int nodeA, int nodeB, int startDim, double eps) {
+		/* only a join of lower parallelism than the pool needs to bound itself */
+		int slots = parallelism < ParallelPool.get(parallelism).getParallelism() ? parallelism : 0;
+		ParallelPool.invoke(parallelism, new JoinTask(nodeA, nodeB, startDim, eps, slots));
+	}
+	
+	/**
+	 * Parallel counterpart of EGOJoin. Sub-joins with at least parallelCutoff
+	 * candidate pairs are split into child tasks; smaller ones are run by
+	 * {@link #EGOJoin(int, int, int, double)}. The children are forked from
+	 * the smallest up and the largest is run by the worker itself, so idle
+	 * workers steal the smaller pieces first.
+	 * <p>
+	 * A task may keep at most slots workers busy (0 for as many as the pool
+	 * has), which it shares among its children. With fewer slots than
+	 * children, that many lanes each take the largest child left, and a task
+	 * with a single slot is run by EGOJoin.
+	 */
+	private class JoinTask extends RecursiveAction {
+		
+		private static final long serialVersionUID = 1L;
+		
+		private final int nodeA, nodeB, startDim;
+		private final double eps;
+		private int slots;
+		
+		JoinTask(int nodeA, int nodeB, int startDim, double eps, int slots) {
+			this.nodeA = nodeA;
+			this.nodeB = nodeB;
+			this.startDim = startDim;
+			this.eps = eps;
+			this.slots = slots;
+		}
+		
+		long pairs() {
+			return (long) treeA.getSize(nodeA) * treeB.getSize(nodeB);
+		}
+		
+		@Override
+		protected void compute() {
+			if (slots == 1 || pairs() < parallelCutoff) {
+				EGOJoin(nodeA, nodeB, startDim, eps);
+				return;
+			}
+			
+			if (prune(nodeA, nodeB, eps))
+				return;
+			int[] children = new int[3 * 4];
+			int n = EGOStep(nodeA, nodeB, startDim, eps, leafSize, children) / 3;
+			if (n == 0)
+				return;
+			
+			JoinTask[] tasks = new JoinTask[n];
+			for (int c = 0; c < n; c++)
+				tasks[c] = new JoinTask(children[3 * c], children[3 * c + 1], children[3 * c + 2], eps, 1);
+			Arrays.sort(tasks, Comparator.comparingLong(JoinTask::pairs));
+			if (slots > 0 && slots < n) {
+				ParallelPool.lanes(slots, n, 1, c -> tasks[n - 1 - c].compute()).invoke();
+				return;
+			}
+			
+			/* the larger children get the slots left over */
+			for (int c = 0; c < n; c++)
+				tasks[c].slots = slots == 0 ? 0 : slots / n + (c >= n - slots % n ? 1 : 0);
+			for (int c = 0; c < n - 1; c++)
+				tasks[c].fork();
+			tasks[n - 1].compute();
+			for (int c = n - 2; c >= 0; c--)
+				tasks[c].join();
+		}
+	}
+	
+	/**
+	 * Arrays of the leaf joins, kept by each worker thread and grown as
+	 * needed, so the leaf joins do not allocate.
+	 */
+	private static class LeafScratch {
+		double[] dots;
+		int[] rows;
+		int[] baseA;
+		int[] baseB;
+		int[] foundA;
+		int[] foundB;
+		
+		double[] dots(int n) {
+			if (dots == null || dots.length < n)
+				dots = new double[n];
+			return dots;
+		}
+		
+		static int[] fit(int[] array, int n) {
+			return array != null && array.length >= n ? array : new int[n];
+		}
+	}
+	
+	/**
+	 * Leaf join of two blocks whose points are all within eps of each other:
+	 * every pair is credited without computing its distance.
+	 */
+	private void BulkJoin(int frA, int toA, int frB, int toB) {
+		int[] idA = a.getIds();
+		int[] idB = b.getIds();
+		int self = allowSelfSimilar ? 1 : 0;
+		
+		/* a row counts itself at most once, however many rows it stands for */
+		if (isSymmetric) {
+			int szA = weightOf(frA, toA);
+			if (frA == frB) {
+				for (int i = frA; i <= toA; i++)
+					credit(idA[i], i, szA - weights[i] + self);
+			} else {
+				int szB = weightOf(frB, toB);
+				for (int i = frA; i <= toA; i++)
+					credit(idA[i], i, szB);
+				for (int j = frB; j <= toB; j++)
+					credit(idB[j], j, szA);
+			}
 			return;
 		}
+		
+		int szB = weightOf(frB, toB);
+		for (int i = resolved.nextClearBit(frA); i <= toA; i = resolved.nextClearBit(i + 1)) {
+			boolean inB = isSelfJoin && i >= frB && i <= toB;
+			credit(idA[i], i, inB ? szB - weights[i] + self : szB);
+		}
 	}
 	
-	private void NaiveJoin(int frA, int toA, int frB, int toB, double eps) {
-		Instance p, q;		
+	/**
+	 * Leaf join of A against B, one tile of tileRows rows of A against one
+	 * tile of B at a time, so both tiles stay in cache while they are joined.
+	 */
+	private void NaiveJoin(int frA, int toA, int frB, int toB, int startDim, double eps) {
+		double[] da = a.getData();
+		double[] db = b.getData();
+		int[] idA = a.getIds();
+		int[] idB = b.getIds();
+		int[] ranges = dimOrder[startDim];
+		int tile = Math.min(tileRows, Math.max(toA - frA, toB - frB) + 1);
+		LeafScratch s = scratch.get();
+		double[] dots = useGemm ? s.dots(tile * tile) : null;
+		int p, q;
+		
+		/* neighbors found before this leaf, a lower bound of the final count */
+		int n = Math.min(tile, toA - frA + 1);
+		int[] base = s.baseA = LeafScratch.fit(s.baseA, n);
+		int[] found = s.foundA = LeafScratch.fit(s.foundA, n);
+		int[] rows = s.rows = LeafScratch.fit(s.rows, n);
 
-		for (int i = frA; i <= toA; i++) {
-			p = a.getInstance(i);
-			if (result.get(p.getId()) > outlierThreshold) continue;
+		for (int ta = frA; ta <= toA; ta += tile) {
+			int ea = Math.min(toA, ta + tile - 1);
+			for (int i = ta; i <= ea; i++) {
+				base[i - ta] = counts.get(idA[i]);
+				found[i - ta] = 0;
+			}
 			
-			for (int j = frB; j <= toB; j++) {
-				q = b.getInstance(j);
-
-				if (!allowSelfSimilar && (p.getId() == q.getId()))
-					continue;
+			for (int tb = frB; tb <= toB; tb += tile) {
+				int eb = Math.min(toB, tb + tile - 1);
 				
-				if (dist.compute(p.getValues(), q.getValues()) <= eps) {
+				// only the rows of A which are still unresolved
+				int numRows = 0;
+				for (int i = ta; i <= ea; i++) {
+					if (base[i - ta] + found[i - ta] <= countLimit)
+						rows[numRows++] = i;
+				}
+				if (dots != null)
+					DotProducts(da, rows, numRows, db, tb, eb, dots);
+				
+				for (int x = 0; x < numRows; x++) {
+					int i = rows[x];
+					int k = i - ta;
+					p = idA[i];
+					double epsP = radii != null ? radii[ringLimit[i] - 1] : eps;
+					double boundP = dist.reduce(epsP);
+					
+					int dot = x * (eb - tb + 1) - tb;
+					for (int j = tb; j <= eb; j++) {
+						q = idB[j];
 
-					/* comment to avoid twice neighbor count in R */
-//					if (isSelfJoin) {
-//						result.set(p.getId(), result.get(p.getId()) + 1);
-//						result.set(q.getId(), result.get(q.getId()) + 1);
-//					} else {
-					result.set(p.getId(), result.get(p.getId()) + 1);
-//					}
+						if (!allowSelfSimilar && (p == q))
+							continue;
+						
+						double d = rangeDistance(da, i, db, j, ranges, epsP, dots, dot + j);
+						if (d > boundP)
+							continue;
+						
+						int w = p == q ? 1 : weights[j];
+						int ring = radii != null ? ring(d) : 0;
+						if (ring > 0)
+							creditRing(p, ring, w);
+						else if (base[k] + (found[k] += w) > countLimit)
+							break;
+					}
+				}
+			}
+			
+			for (int i = ta; i <= ea; i++) {
+				credit(idA[i], i, found[i - ta]);
+				if (radii != null)
+					updateRingLimit(i);
+			}
+		}
+	}
+	
+	/**
+	 * Leaf join of the symmetric self-join, tiled like NaiveJoin. Each pair is
+	 * evaluated once and credited to both points; on the diagonal only pairs
+	 * j > i are visited. A pair is skipped only when both of its points are
+	 * already resolved. Neighbors are counted locally and added to the shared
+	 * counts when the leaf is done.
+	 */
+	private void SymmetricJoin(int frA, int toA, int frB, int toB, int startDim, double eps) {
+		double[] data = a.getData();
+		int[] ids = a.getIds();
+		int[] ranges = dimOrder[startDim];
+		boolean diagonal = frA == frB;
+		int tile = Math.min(tileRows, Math.max(toA - frA, toB - frB) + 1);
+		LeafScratch s = scratch.get();
+		double[] dots = useGemm ? s.dots(tile * tile) : null;
+		int[] rows = s.rows = LeafScratch.fit(s.rows, tile);
+		
+		int[] baseA = s.baseA = snapshot(ids, frA, toA, s.baseA);
+		int[] baseB = diagonal ? baseA : (s.baseB = snapshot(ids, frB, toB, s.baseB));
+		int[] foundA = s.foundA = LeafScratch.fit(s.foundA, toA - frA + 1);
+		Arrays.fill(foundA, 0, toA - frA + 1, 0);
+		int[] foundB = foundA;
+		if (!diagonal) {
+			foundB = s.foundB = LeafScratch.fit(s.foundB, toB - frB + 1);
+			Arrays.fill(foundB, 0, toB - frB + 1, 0);
+		}
+		
+		for (int ta = frA; ta <= toA; ta += tile) {
+			int ea = Math.min(toA, ta + tile - 1);
+			for (int i = ta; i <= ea; i++)
+				rows[i - ta] = i;
+			
+			for (int tb = diagonal ? ta : frB; tb <= toB; tb += tile) {
+				int eb = Math.min(toB, tb + tile - 1);
+				boolean sameTile = diagonal && ta == tb;
+				double[] tileDots = null;
+				if (dots != null && isDense(baseA, foundA, ta - frA, ea - frA, baseB, foundB, tb - frB, eb - frB)) {
+					DotProducts(data, rows, ea - ta + 1, data, tb, eb, dots);
+					tileDots = dots;
 				}
 				
-				if (result.get(p.getId()) > outlierThreshold) break;
+				for (int i = ta; i <= ea; i++) {
+					int p = i - frA;
+					if (sameTile && allowSelfSimilar)
+						foundA[p]++;
+					boolean pDone = baseA[p] + foundA[p] > countLimit;
+					
+					int dot = (i - ta) * (eb - tb + 1) - tb;
+					for (int j = sameTile ? i + 1 : tb; j <= eb; j++) {
+						int q = j - frB;
+						boolean qDone = baseB[q] + foundB[q] > countLimit;
+						if (pDone && qDone)
+							continue;
+						
+						double epsPQ = radii == null ? eps
+								: radii[Math.max(pDone ? 0 : ringLimit[i], qDone ? 0 : ringLimit[j]) - 1];
+						double d = rangeDistance(data, i, data, j, ranges, epsPQ, tileDots, dot + j);
+						if (d > dist.reduce(epsPQ))
+							continue;
+						
+						int ring = radii != null ? ring(d) : 0;
+						if (ring > 0) {
+							creditRing(ids[j], ring, weights[i]);
+							creditRing(ids[i], ring, weights[j]);
+						} else {
+							foundB[q] += weights[i];
+							pDone = baseA[p] + (foundA[p] += weights[j]) > countLimit;
+						}
+					}
+				}
 			}
 		}
+		
+		for (int i = frA; i <= toA; i++)
+			credit(ids[i], i, foundA[i - frA]);
+		if (!diagonal) {
+			for (int j = frB; j <= toB; j++)
+				credit(ids[j], j, foundB[j - frB]);
+		}
+		
+		if (radii != null) {
+			for (int i = frA; i <= toA; i++)
+				updateRingLimit(i);
+			for (int j = diagonal ? toB + 1 : frB; j <= toB; j++)
+				updateRingLimit(j);
+		}
 	}
-
+	
+	/**
+	 * Whether at least half of the pairs of two tiles of the symmetric join
+	 * still have an unresolved point, so computing all their dot products
+	 * does not waste most of the work.
+	 */
+	private boolean isDense(int[] baseA, int[] foundA, int frA, int toA,
+			int[] baseB, int[] foundB, int frB, int toB) {
+		int openA = 0, openB = 0;
+		for (int i = frA; i <= toA; i++) {
+			if (baseA[i] + foundA[i] <= countLimit)
+				openA++;
+		}
+		for (int j = frB; j <= toB; j++) {
+			if (baseB[j] + foundB[j] <= countLimit)
+				openB++;
+		}
+		int szA = toA - frA + 1, szB = toB - frB + 1;
+		long open = (long) openA * szB + (long) (szA - openA) * openB;
+		return 2 * open >= (long) szA * szB;
+	}
+	
+	/**
+	 * dist.reduce of the distance between row i of A and row j of B, or any
+	 * value above dist.reduce(eps) if they are not within eps. When the leaf
+	 * join computed their dot product in bulk (dots[k], dots != null) the
+	 * squared distance is |a|^2 + |b|^2 - 2 a.b, and only pairs within its
+	 * rounding error of eps are measured with the distance function, as are
+	 * all pairs within eps of a sweep, whose ring must be exact.
+	 */
+	private double rangeDistance(double[] da, int i, double[] db, int j, int[] ranges, double eps,
+			double[] dots, int k) {
+		if (dots != null) {
+			double bound = eps * eps;
+			double norms = normA[i] + normB[j];
+			double margin = gemmError * (norms + bound);
+			double sq = norms - 2 * dots[k];
+			if (sq < bound - margin && radii == null)
+				return Math.max(0, sq);
+			if (sq > bound + margin)
+				return Double.POSITIVE_INFINITY;
+		}
+		return dist.rangeDistance(da, i * numDim, db, j * numDim, ranges, eps);
+	}
+	
+	/**
+	 * Index of the smallest radius of the sweep that a pair at reduced
+	 * distance d is within, given that it is within the largest one.
+	 */
+	private int ring(double d) {
+		int k = Arrays.binarySearch(reducedRadii, d);
+		return k < 0 ? -(k + 1) : k;
+	}
+	
+	private void creditRing(int id, int ring, int neighbors) {
+		ringCounts.addAndGet(id * (radii.length - 1) + ring - 1, neighbors);
+	}
+	
+	/**
+	 * Lowers the ring limit of row i of A to the smallest radius within which
+	 * it has more than countLimit neighbors. Its counts within that
+	 * radius and beyond are settled, so only pairs within the radius below
+	 * still matter to it. Concurrent updates may lose a lower limit, which
+	 * only costs extra work.
+	 */
+	private void updateRingLimit(int i) {
+		int id = a.getId(i);
+		int numRings = radii.length - 1;
+		long count = counts.get(id);
+		for (int k = 1; k < ringLimit[i]; k++) {
+			count += ringCounts.get(id * numRings + k - 1);
+			if (count > countLimit) {
+				ringLimit[i] = k;
+				return;
+			}
+		}
+	}
+	
+	/**
+	 * Largest radius of the sweep that still matters to an unresolved row of
+	 * A (or of B in the symmetric join).
+	 */
+	private double sweepRadius(int frA, int toA, int frB, int toB) {
+		int limit = 1;
+		for (int i = resolved.nextClearBit(frA); i <= toA && limit < radii.length; i = resolved.nextClearBit(i + 1))
+			limit = Math.max(limit, ringLimit[i]);
+		if (isSymmetric) {
+			for (int j = resolved.nextClearBit(frB); j <= toB && limit < radii.length; j = resolved.nextClearBit(j + 1))
+				limit = Math.max(limit, ringLimit[j]);
+		}
+		return radii[limit - 1];
+	}
+	
+	/**
+	 * Dot products of the given rows of A with rows [fr, to] of B, written
+	 * row by row to out. Two rows of A are multiplied with two rows of B at a
+	 * time, so each value loaded is used twice.
+	 */
+	private void DotProducts(double[] da, int[] rows, int numRows, double[] db, int fr, int to, double[] out) {
+		int nb = to - fr + 1;
+		int x = 0;
+		for (; x + 1 < numRows; x += 2) {
+			int p0 = rows[x] * numDim;
+			int p1 = rows[x + 1] * numDim;
+			int y = 0;
+			for (; y + 1 < nb; y += 2) {
+				int q0 = (fr + y) * numDim;
+				int q1 = q0 + numDim;
+				double s00 = 0, s01 = 0, s10 = 0, s11 = 0;
+				for (int k = 0; k < numDim; k++) {
+					double a0 = da[p0 + k], a1 = da[p1 + k];
+					double b0 = db[q0 + k], b1 = db[q1 + k];
+					s00 += a0 * b0;
+					s01 += a0 * b1;
+					s10 += a1 * b0;
+					s11 += a1 * b1;
+				}
+				out[x * nb + y] = s00;
+				out[x * nb + y + 1] = s01;
+				out[(x + 1) * nb + y] = s10;
+				out[(x + 1) * nb + y + 1] = s11;
+			}
+			if (y < nb) {
+				int q = (fr + y) * numDim;
+				out[x * nb + y] = dot(da, p0, db, q);
+				out[(x + 1) * nb + y] = dot(da, p1, db, q);
+			}
+		}
+		if (x < numRows) {
+			int p = rows[x] * numDim;
+			for (int y = 0; y < nb; y++)
+				out[x * nb + y] = dot(da, p, db, (fr + y) * numDim);
+		}
+	}
+	
+	private double dot(double[] da, int pOff, double[] db, int qOff) {
+		double sum = 0;
+		for (int k = 0; k < numDim; k++)
+			sum += da[pOff + k] * db[qOff + k];
+		return sum;
+	}
+	
+	/**
+	 * Average share of the dimensions that the distance checks visit before
+	 * they can stop, over pairs of rows at most a tile apart in EGO order,
+	 * like the pairs of a leaf join.
+	 */
+	private double visitedDimensions(double eps) {
+		int numRows = Math.min(a.getNumRows(), b.getNumRows());
+		if (numRows < 2)
+			return 0;
+		
+		double[] da = a.getData();
+		double[] db = b.getData();
+		double bound = eps * eps;
+		long visited = 0;
+		for (int s = 0; s < GEMM_SAMPLES; s++) {
+			int i = rand.nextInt(numRows);
+			int j = Math.min(numRows - 1, i + 1 + rand.nextInt(tileRows));
+			double sum = 0;
+			int k = 0;
+			while (k < numDim && sum <= bound) {
+				double d = da[i * numDim + k] - db[j * numDim + k];
+				sum += d * d;
+				k++;
+			}
+			visited += k;
+		}
+		return visited / ((double) GEMM_SAMPLES * numDim);
+	}
+	
+	private double[] squaredNorms(Table t) {
+		double[] norms = new double[t.getNumRows()];
+		for (int i = 0; i < norms.length; i++)
+			norms[i] = dot(t.getData(), i * numDim, t.getData(), i * numDim);
+		return norms;
+	}
+	
+	/**
+	 * Counts of the rows [from, to], stored in base if it is large enough.
+	 */
+	private int[] snapshot(int[] ids, int from, int to, int[] base) {
+		base = LeafScratch.fit(base, to - from + 1);
+		for (int i = from; i <= to; i++)
+			base[i - from] = counts.get(ids[i]);
+		return base;
+	}
+	
+	/**
+	 * Adds neighbors to the count of point id found at row i of A and marks
+	 * the row as resolved once it has more than countLimit neighbors.
+	 */
+	private void credit(int id, int i, int neighbors) {
+		if (neighbors == 0)
+			return;
+		int count = counts.addAndGet(id, neighbors);
+		if (count > countLimit && count - neighbors <= countLimit)
+			resolved.set(i);
+	}
+	
 	public void reset() {
-		result.clear();
+		result = new int[0];
+		resultList = null;
 	}
 
-	public ArrayList<Integer> getResult() {
+	/**
+	 * Neighbor count of each row id. Counting stops once a row has more than
+	 * outlierThreshold neighbors, or max neighbors with
+	 * {@link #setMaxThreshold(int)}, so larger counts are not exact.
+	 */
+	public int[] getCounts() {
 		return result;
-	}			
-}
\ No newline at end of file
+	}
+	
+	/**
+	 * Ids of the rows with fewer than outlierThreshold neighbors.
+	 */
+	public BitSet getOutliers() {
+		return getOutliers(outlierThreshold);
+	}
+	
+	/**
+	 * Ids of the rows with fewer than threshold neighbors, for a threshold of
+	 * at most one more than the counts are exact to.
+	 */
+	public BitSet getOutliers(int threshold) {
+		if (threshold > countLimit + 1)
+			throw new IllegalArgumentException(String.format("Counts are exact up to %d only: %d", countLimit, threshold));
+		BitSet outliers = new BitSet(result.length);
+		for (int i = 0; i < result.length; i++) {
+			if (result[i] < threshold)
+				outliers.set(i);
+		}
+		return outliers;
+	}
+
+	/**
+	 * Boxed copy of {@link #getCounts()}, kept for callers of the former
+	 * list-based result. It is built once per join and shared by the calls
+	 * until the next join or {@link #reset()}.
+	 */
+	public ArrayList<Integer> getResult() {
+		if (resultList == null) {
+			resultList = new ArrayList<>(result.length);
+			for (int count : result)
+				resultList.add(count);
+		}
+		return resultList;
+	}
+}
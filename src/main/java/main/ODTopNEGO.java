@@ -0,0 +1,203 @@
+package main;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import common.DistanceFunction;
+import common.EuclideanDistance;
+import common.QuickSort;
+import common.SortUtils;
+import common.Table;
+
+/**
+ * The n rows with the largest k-distance, found like ORCA: a min-heap keeps
+ * the n best scores found so far, whose smallest is the cutoff a row must
+ * beat to enter it. A row is dismissed as soon as the k-th smallest distance
+ * found for it, which bounds its k-distance, is no greater than the cutoff.
+ * <p>
+ * The rows are visited leaf by leaf of the {@link BlockTree} of their EGO
+ * order. The neighbors of each leaf are searched nearest blocks first, so the
+ * bounds drop quickly, and blocks farther than the bound of every row still
+ * in the running are skipped. The k-distance of a row is at most the
+ * diameter of any block around it with more than k rows, so the leaves are
+ * visited from the largest such bound down, and the join stops at the first
+ * leaf whose bound cannot beat the cutoff.
+ */
+public class ODTopNEGO {
+
+	private final int n;
+	private final int k;
+	private final int t;
+	private final DistanceFunction dist;
+	private final Random rand;
+
+	private Table a;
+	private BlockTree tree;
+	/* heaps of the rows of the leaf being searched */
+	private KnnSearch search;
+	/* scores of the best rows, negated so that the max-heap keeps the smallest on top */
+	private double[] best;
+	private int[] bestRows;
+	private int numBest;
+
+	private int[] resultIds;
+	private double[] resultScores;
+
+	public ODTopNEGO(int n, int k, int joinThreshold) {
+		this(n, k, joinThreshold, new EuclideanDistance());
+	}
+
+	/**
+	 * See {@link ODKnnEGO#ODKnnEGO(int, int, DistanceFunction)}.
+	 */
+	public ODTopNEGO(int n, int k, int joinThreshold, DistanceFunction fn) {
+		if (n < 1)
+			throw new IllegalArgumentException("Invalid n: " + n);
+		if (k < 1)
+			throw new IllegalArgumentException("Invalid k: " + k);
+		if (joinThreshold < 3)
+			throw new IllegalArgumentException("Invalid join threshold: " + joinThreshold);
+		this.n = n;
+		this.k = k;
+		this.t = joinThreshold;
+		this.dist = fn;
+		this.rand = new Random();
+		this.resultIds = new int[0];
+		this.resultScores = new double[0];
+	}
+
+	/**
+	 * Finds the n rows of a with the largest k-distance, see {@link #getIds()}.
+	 */
+	public void topN(Table a) {
+		this.a = a.clone();
+		best = new double[n + 1];
+		bestRows = new int[n + 1];
+		numBest = 0;
+
+		if (a.getNumRows() > 0) {
+			ODKnnEGO.EGOSort(this.a, ODKnnEGO.gridSide(this.a, k, dist, rand));
+			tree = new BlockTree(this.a, t);
+			search = new KnnSearch(this.a, tree, dist, k, t, false);
+			TopNJoin();
+		}
+
+		/* empty the heap, the smallest score first */
+		resultIds = new int[numBest];
+		resultScores = new double[numBest];
+		for (int size = numBest; size > 0; size--) {
+			resultIds[size - 1] = this.a.getId(bestRows[1]);
+			resultScores[size - 1] = -best[1];
+			best[1] = best[size];
+			bestRows[1] = bestRows[size];
+			SortUtils.siftDown(best, bestRows, 1, size - 1);
+		}
+
+		tree = null;
+		search = null;
+	}
+
+	private double cutoff() {
+		return numBest < n ? Double.NEGATIVE_INFINITY : -best[1];
+	}
+
+	private void TopNJoin() {
+		int[] leaves = new int[tree.getNumNodes()];
+		double[] bounds = new double[tree.getNumNodes()];
+		int numLeaves = collectLeaves(1, Double.POSITIVE_INFINITY, leaves, bounds, 0);
+
+		/* largest bound first */
+		double[] keys = new double[numLeaves];
+		for (int x = 0; x < numLeaves; x++)
+			keys[x] = -bounds[x];
+		leaves = Arrays.copyOf(leaves, numLeaves);
+		QuickSort.sort(keys, leaves);
+
+		for (int x = 0; x < numLeaves; x++) {
+			if (-keys[x] <= cutoff())
+				break;
+			LeafSearch(leaves[x]);
+		}
+	}
+
+	/**
+	 * Lists the leaves under node with the diameter of their smallest
+	 * ancestor of more than k rows, which bounds the k-distance of their rows.
+	 */
+	private int collectLeaves(int node, double ancestorBound, int[] leaves, double[] bounds, int numLeaves) {
+		double nodeBound = tree.getSize(node) > k ? search.maxDistance(node, node) : ancestorBound;
+		if (tree.isLeaf(node)) {
+			leaves[numLeaves] = node;
+			bounds[numLeaves] = nodeBound;
+			return numLeaves + 1;
+		}
+		numLeaves = collectLeaves(2 * node, nodeBound, leaves, bounds, numLeaves);
+		return collectLeaves(2 * node + 1, nodeBound, leaves, bounds, numLeaves);
+	}
+
+	/**
+	 * Searches the k nearest neighbors of the rows of a leaf, nearest blocks
+	 * first, until every row is dismissed or the remaining blocks are too far
+	 * to matter. A row is dismissed once its bound cannot beat the cutoff;
+	 * the rows still in the running then have their exact k-distance and
+	 * enter the top n.
+	 */
+	private void LeafSearch(int leaf) {
+		int from = tree.getFrom(leaf);
+		int to = tree.getTo(leaf);
+		for (int i = from; i <= to; i++)
+			search.clear(i - from);
+
+		double cutoff = cutoff();
+		search.searchLeaf(leaf, from, i -> search.bound[i - from] > cutoff);
+
+		for (int i = from; i <= to; i++) {
+			if (search.bound[i - from] > cutoff)
+				enter(i, search.score(i - from));
+		}
+	}
+
+	/**
+	 * Adds row i with the given score to the top n if it beats the cutoff.
+	 */
+	private void enter(int i, double score) {
+		if (numBest < n) {
+			best[++numBest] = -score;
+			bestRows[numBest] = i;
+			SortUtils.siftUp(best, bestRows, numBest);
+		} else if (score > -best[1]) {
+			best[1] = -score;
+			bestRows[1] = i;
+			SortUtils.siftDown(best, bestRows, 1, n);
+		}
+	}
+
+	public void reset() {
+		resultIds = new int[0];
+		resultScores = new double[0];
+	}
+
+	/**
+	 * Ids of the top n rows, the largest k-distance first. Rows with fewer
+	 * than k other rows score the distance to the farthest one, or infinity
+	 * if there is none.
+	 */
+	public int[] getIds() {
+		return resultIds;
+	}
+
+	/**
+	 * k-distances of the rows of {@link #getIds()}.
+	 */
+	public double[] getScores() {
+		return resultScores;
+	}
+
+	public int getN() {
+		return n;
+	}
+
+	public int getK() {
+		return k;
+	}
+}
@@ -0,0 +1,108 @@
+package main;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntConsumer;
+
+/**
+ * The ForkJoinPool shared by the parallel joins, so that successive joins and
+ * the stages of a pipeline reuse the same workers instead of starting threads
+ * of their own. There is a single pool, with as many workers as the largest
+ * parallelism requested so far: a larger request replaces it, and the old
+ * pool finishes its tasks and lets its workers exit. A join of lower
+ * parallelism bounds itself through the tasks it splits into, see
+ * {@link #lanes(int, int, int, IntConsumer)}. Idle workers block until new
+ * tasks are submitted.
+ */
+final class ParallelPool {
+	/** Utility classes should not have public constructors. */
+	private ParallelPool() {
+
+	}
+
+	private static ForkJoinPool pool;
+
+	/**
+	 * The shared pool, with at least parallelism workers.
+	 */
+	static synchronized ForkJoinPool get(int parallelism) {
+		if (parallelism < 1)
+			throw new IllegalArgumentException("Invalid parallelism: " + parallelism);
+		if (pool == null || pool.getParallelism() < parallelism) {
+			if (pool != null)
+				pool.shutdown();
+			pool = new ForkJoinPool(parallelism);
+		}
+		return pool;
+	}
+
+	/**
+	 * Runs task on the shared pool, with at least parallelism workers.
+	 */
+	static void invoke(int parallelism, ForkJoinTask<?> task) {
+		for (;;) {
+			ForkJoinPool p = get(parallelism);
+			try {
+				p.invoke(task);
+				return;
+			} catch (RejectedExecutionException e) {
+				/* a larger join replaced the pool in the meantime */
+				if (!p.isShutdown())
+					throw e;
+			}
+		}
+	}
+
+	/**
+	 * Runs body for every i in [0, n) on at most parallelism workers of the
+	 * shared pool.
+	 */
+	static void forEach(int parallelism, int n, int grain, IntConsumer body) {
+		invoke(parallelism, lanes(parallelism, n, grain, body));
+	}
+
+	/**
+	 * Task that runs body for every i in [0, n) on at most the given number
+	 * of workers: it splits into that many lanes, each taking ranges of at
+	 * most grain indexes from a shared counter until none is left.
+	 */
+	static RecursiveAction lanes(int lanes, int n, int grain, IntConsumer body) {
+		grain = Math.max(1, grain);
+		lanes = (int) Math.max(1, Math.min(lanes, ((long) n + grain - 1) / grain));
+		return new LaneTask(lanes, n, grain, new AtomicInteger(), body);
+	}
+
+	private static class LaneTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final int lanes, n, grain;
+		private final AtomicInteger next;
+		private final IntConsumer body;
+
+		LaneTask(int lanes, int n, int grain, AtomicInteger next, IntConsumer body) {
+			this.lanes = lanes;
+			this.n = n;
+			this.grain = grain;
+			this.next = next;
+			this.body = body;
+		}
+
+		@Override
+		protected void compute() {
+			if (lanes > 1) {
+				int half = lanes / 2;
+				invokeAll(new LaneTask(half, n, grain, next, body), new LaneTask(lanes - half, n, grain, next, body));
+				return;
+			}
+			for (int from = next.getAndAdd(grain); from < n; from = next.getAndAdd(grain)) {
+				int to = Math.min(n, from + grain);
+				for (int i = from; i < to; i++)
+					body.accept(i);
+			}
+		}
+	}
+}
@@ -0,0 +1,149 @@
+package main;
+
+import java.util.Arrays;
+
+import common.Table;
+
+/**
+ * Rows in EGO order at a fixed eps, with their cells, a weight per row and
+ * the {@link BlockTree} over them, which {@link ODSuperEGO} joins in place
+ * as B. A deleted row stays where it is with weight 0 and id -1, so it is
+ * neither counted nor taken for a row of A, and the rectangles of its block
+ * shrink to the rows left.
+ */
+final class SortedRun {
+
+	private final Table table;
+	private final int[] cells;
+	private final BlockTree tree;
+	private final int[] weights;
+	private long[] weightSum;
+	private double[] squaredNorms;
+	private int numDeleted;
+
+	private SortedRun(Table sorted, int[] cells, int minSize) {
+		this.table = sorted;
+		this.cells = cells;
+		this.tree = new BlockTree(sorted, minSize);
+		this.weights = new int[sorted.getNumRows()];
+		Arrays.fill(weights, 1);
+	}
+
+	/**
+	 * Run of the rows of t, which is sorted in place.
+	 */
+	static SortedRun sort(Table t, double eps, int minSize) {
+		int[] cells = EGOGrid.getCells(t, eps);
+		int[] order = EGOGrid.sort(cells, t.getNumRows(), t.getNumCols());
+		t.permute(order);
+		return new SortedRun(t, EGOGrid.permute(cells, t.getNumCols(), order), minSize);
+	}
+
+	/**
+	 * Run of the rows left in r1 and r2, merged in one pass.
+	 */
+	static SortedRun merge(SortedRun r1, SortedRun r2, int minSize) {
+		int numCols = r1.table.getNumCols();
+		int numRows = r1.getNumLive() + r2.getNumLive();
+		double[] data = new double[numRows * numCols];
+		int[] ids = new int[numRows];
+		int[] labels = new int[numRows];
+		int[] cells = new int[numRows * numCols];
+
+		int i = r1.nextLive(0), j = r2.nextLive(0);
+		for (int n = 0; n < numRows; n++) {
+			SortedRun from = r1;
+			int row = i;
+			if (i == r1.weights.length || (j < r2.weights.length && compareCells(r2.cells, j, r1.cells, i, numCols) < 0)) {
+				from = r2;
+				row = j;
+				j = r2.nextLive(j + 1);
+			} else {
+				i = r1.nextLive(i + 1);
+			}
+			System.arraycopy(from.table.getData(), row * numCols, data, n * numCols, numCols);
+			System.arraycopy(from.cells, row * numCols, cells, n * numCols, numCols);
+			ids[n] = from.table.getId(row);
+			labels[n] = from.table.getLabel(row);
+		}
+		return new SortedRun(new Table(numRows, numCols, data, ids, labels, "index", true), cells, minSize);
+	}
+
+	private static int compareCells(int[] c1, int row1, int[] c2, int row2, int numCols) {
+		for (int k = 0; k < numCols; k++) {
+			int c = Integer.compare(c1[row1 * numCols + k], c2[row2 * numCols + k]);
+			if (c != 0)
+				return c;
+		}
+		return 0;
+	}
+
+	private int nextLive(int row) {
+		while (row < weights.length && weights[row] == 0)
+			row++;
+		return row;
+	}
+
+	/**
+	 * Deletes the row at the given position.
+	 */
+	void delete(int row) {
+		weights[row] = 0;
+		table.getIds()[row] = -1;
+		weightSum = null;
+		numDeleted++;
+		tree.refit(table.getData(), row, i -> weights[i] > 0);
+	}
+
+	Table getTable() {
+		return table;
+	}
+
+	int[] getCells() {
+		return cells;
+	}
+
+	BlockTree getTree() {
+		return tree;
+	}
+
+	int[] getWeights() {
+		return weights;
+	}
+
+	/**
+	 * Prefix sums of the weights, computed again after deletes.
+	 */
+	long[] getWeightSum() {
+		if (weightSum == null) {
+			weightSum = new long[weights.length + 1];
+			for (int j = 0; j < weights.length; j++)
+				weightSum[j + 1] = weightSum[j] + weights[j];
+		}
+		return weightSum;
+	}
+
+	/**
+	 * Squared norms of the rows, kept for the dot-product leaf join once it
+	 * has computed them.
+	 */
+	double[] getSquaredNorms() {
+		return squaredNorms;
+	}
+
+	void setSquaredNorms(double[] squaredNorms) {
+		this.squaredNorms = squaredNorms;
+	}
+
+	int getNumRows() {
+		return weights.length;
+	}
+
+	int getNumLive() {
+		return weights.length - numDeleted;
+	}
+
+	int getNumDeleted() {
+		return numDeleted;
+	}
+}
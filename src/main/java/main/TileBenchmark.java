@@ -0,0 +1,89 @@
+package main;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.javatuples.Quartet;
+
+import common.Table;
+
+/**
+ * Compares the tiled leaf join with the row-by-row one on high-dimensional
+ * datasets, whose leaf blocks do not fit in the level 1 cache. Both variants
+ * are warmed up first, then timed in rounds that alternate which one runs
+ * first, and the medians are compared.
+ */
+public class TileBenchmark {
+
+	private static final int WARMUP = 3;
+	private static final int RUNS = 9;
+	private static final int ROW_BY_ROW = Integer.MAX_VALUE;
+	private static final int TILED = 0;
+
+	public static void main(String[] args) {
+
+		ArrayList<Table> datasets = new ArrayList<>();
+		datasets.add(Table.readCSV("datasets/musk.csv",        ",", 166, true));
+		datasets.add(Table.readCSV("datasets/arrhythmia.csv",  ",", 274, true));
+		datasets.add(Table.readCSV("datasets/satimage-2.csv",  ",",  36, true));
+
+		ArrayList<Quartet<String, Double, Integer, Integer>> parameters = new ArrayList<>();
+		parameters.add(new Quartet<>("musk       ", 0.9000,    5,  50));
+		parameters.add(new Quartet<>("arrhythmia ", 1.5000,    3,  20));
+		parameters.add(new Quartet<>("satimage-2 ", 0.7657,   34, 100));
+
+		assert datasets.size() == parameters.size();
+
+		for (int i = 0; i < datasets.size(); i++) {
+
+			Table X = datasets.get(i);
+			X.normalize();
+
+			String dataset = parameters.get(i).getValue0();
+			double r = parameters.get(i).getValue1();
+			int outThreshold = parameters.get(i).getValue2();
+			int joinThreshold = parameters.get(i).getValue3();
+
+			for (int run = 0; run < WARMUP; run++) {
+				SSJ(X, r, outThreshold, joinThreshold, ROW_BY_ROW);
+				SSJ(X, r, outThreshold, joinThreshold, TILED);
+			}
+
+			double[] rowByRow = new double[RUNS];
+			double[] tiled = new double[RUNS];
+			for (int run = 0; run < RUNS; run++) {
+				if (run % 2 == 0) {
+					rowByRow[run] = SSJ(X, r, outThreshold, joinThreshold, ROW_BY_ROW);
+					tiled[run] = SSJ(X, r, outThreshold, joinThreshold, TILED);
+				} else {
+					tiled[run] = SSJ(X, r, outThreshold, joinThreshold, TILED);
+					rowByRow[run] = SSJ(X, r, outThreshold, joinThreshold, ROW_BY_ROW);
+				}
+			}
+
+			double rowByRowMedian = median(rowByRow);
+			double tiledMedian = median(tiled);
+			System.out.println(String.format("dataset=%s\tjoinThs=%d\toutThs=%d\trange=%.4f\trowByRow=%.3f\ttiled=%.3f\tspeedup=%.2f",
+					dataset, joinThreshold, outThreshold, r, rowByRowMedian, tiledMedian, rowByRowMedian / tiledMedian));
+		}
+	}
+
+	/**
+	 * Runtime in seconds of a self-join with the given tile size.
+	 */
+	private static double SSJ(Table X, double radius, int threshold, int j, int tileSize) {
+		ODSuperEGO superEgo = new ODSuperEGO(threshold, j);
+		superEgo.setTileSize(tileSize);
+
+		long start = System.nanoTime();
+		superEgo.range(X, radius);
+		long end = System.nanoTime();
+		return (end - start) / 1e9;
+	}
+
+	private static double median(double[] times) {
+		double[] sorted = times.clone();
+		Arrays.sort(sorted);
+		return sorted[sorted.length / 2];
+	}
+}
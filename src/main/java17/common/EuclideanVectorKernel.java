@@ -0,0 +1,57 @@
+package common;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Vector API kernels of {@link VectorEuclideanDistance}. Referencing this
+ * class requires the jdk.incubator.vector module.
+ */
+final class EuclideanVectorKernel {
+	/** Utility classes should not have public constructors. */
+	private EuclideanVectorKernel() {
+
+	}
+
+	private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+	/* vectors accumulated between two checks of the partial sum */
+	private static final int CHECK_INTERVAL = 4;
+
+	static double squaredDistance(double[] p, int pOff, double[] q, int qOff, int numDim) {
+		return squaredDistance(p, pOff, q, qOff, numDim, 0, Double.POSITIVE_INFINITY);
+	}
+
+	/**
+	 * Adds the squared distance between the numDim values starting at p[pOff]
+	 * and q[qOff] to sum. Gives up, returning a partial sum above bound, as
+	 * soon as a partial sum exceeds bound.
+	 */
+	static double squaredDistance(double[] p, int pOff, double[] q, int qOff, int numDim,
+			double sum, double bound) {
+		int upper = SPECIES.loopBound(numDim);
+		int i = 0;
+
+		if (upper > 0) {
+			DoubleVector acc = DoubleVector.zero(SPECIES);
+			int steps = 0;
+			for (; i < upper; i += SPECIES.length()) {
+				DoubleVector d = DoubleVector.fromArray(SPECIES, p, pOff + i)
+						.sub(DoubleVector.fromArray(SPECIES, q, qOff + i));
+				acc = d.fma(d, acc);
+				if (++steps == CHECK_INTERVAL) {
+					steps = 0;
+					if (sum + acc.reduceLanes(VectorOperators.ADD) > bound)
+						return sum + acc.reduceLanes(VectorOperators.ADD);
+				}
+			}
+			sum += acc.reduceLanes(VectorOperators.ADD);
+		}
+
+		for (; i < numDim && sum <= bound; i++) {
+			double d = p[pOff + i] - q[qOff + i];
+			sum += d * d;
+		}
+		return sum;
+	}
+}
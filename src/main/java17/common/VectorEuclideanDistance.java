@@ -0,0 +1,48 @@
+package common;
+
+/**
+ * Euclidean distance computed over many lanes at once with the Vector API.
+ * The vector kernels live in {@link EuclideanVectorKernel}, which is only
+ * loaded when the jdk.incubator.vector module is present (e.g. with
+ * --add-modules jdk.incubator.vector); otherwise the scalar kernels of
+ * {@link EuclideanDistance} are used.
+ */
+public class VectorEuclideanDistance extends EuclideanDistance {
+
+	private static final boolean VECTORIZED =
+			ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent();
+
+	/**
+	 * Whether the distances are computed with the Vector API.
+	 */
+	public static boolean isVectorized() {
+		return VECTORIZED;
+	}
+
+	@Override
+	public double compute(double[] p, int pOff, double[] q, int qOff, int numDim) {
+		if (!VECTORIZED)
+			return super.compute(p, pOff, q, qOff, numDim);
+		return Math.sqrt(EuclideanVectorKernel.squaredDistance(p, pOff, q, qOff, numDim));
+	}
+
+	@Override
+	public boolean withinRange(double[] p, int pOff, double[] q, int qOff, int numDim, double eps) {
+		if (!VECTORIZED)
+			return super.withinRange(p, pOff, q, qOff, numDim, eps);
+		return EuclideanVectorKernel.squaredDistance(p, pOff, q, qOff, numDim, 0, eps * eps) <= eps * eps;
+	}
+
+	@Override
+	public double rangeDistance(double[] p, int pOff, double[] q, int qOff, int[] ranges, double eps) {
+		if (!VECTORIZED)
+			return super.rangeDistance(p, pOff, q, qOff, ranges, eps);
+
+		double bound = eps * eps;
+		double sum = 0;
+		for (int k = 0; k < ranges.length && sum <= bound; k += 2)
+			sum = EuclideanVectorKernel.squaredDistance(p, pOff + ranges[k], q, qOff + ranges[k],
+					ranges[k + 1] - ranges[k] + 1, sum, bound);
+		return sum;
+	}
+}